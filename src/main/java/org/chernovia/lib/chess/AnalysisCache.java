@@ -0,0 +1,98 @@
+package org.chernovia.lib.chess;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of search results, keyed by position (FEN minus the move counters),
+ * strength and search time bucket, so repeated positions skip the engine entirely.
+ */
+public class AnalysisCache {
+
+    private static final int ENTRY_OVERHEAD = 160; //rough bytes per entry beyond its strings
+
+    private final LinkedHashMap<String, EngineResult> entries = new LinkedHashMap<>(256, .75f, true);
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0, misses = 0, evictions = 0;
+
+    /**
+     * @param maxBytes approximate memory ceiling
+     */
+    public AnalysisCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param fen      Position string
+     * @param elo      UCI_Elo of the search
+     * @param moveTime search time in milliseconds
+     * @param multiPv  number of variations searched
+     * @return the cache key for a search
+     */
+    public static String key(String fen, int elo, int moveTime, int multiPv) {
+        return normalizeFen(fen) + "|" + elo + "|" + timeBucket(moveTime) + "|" + multiPv;
+    }
+
+    /**
+     * @return the first four FEN fields (placement, side, castling, en passant)
+     */
+    public static String normalizeFen(String fen) {
+        int fields = 0;
+        for (int i = 0; i < fen.length(); i++) {
+            if (fen.charAt(i) == ' ' && ++fields == 4) return fen.substring(0, i);
+        }
+        return fen;
+    }
+
+    /**
+     * Search times within the same power of two share cache entries
+     */
+    public static int timeBucket(int moveTime) {
+        return moveTime <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(moveTime);
+    }
+
+    public synchronized EngineResult get(String key) {
+        EngineResult result = entries.get(key);
+        if (result == null) misses++; else hits++;
+        return result;
+    }
+
+    public synchronized void put(String key, EngineResult result) {
+        EngineResult old = entries.put(key, result);
+        if (old != null) bytes -= sizeOf(key, old);
+        bytes += sizeOf(key, result);
+        Iterator<Map.Entry<String, EngineResult>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, EngineResult> entry = eldest.next();
+            bytes -= sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeOf(String key, EngineResult result) {
+        return ENTRY_OVERHEAD * (1L + result.lines.size()) + 2L * (key.length() + result.fen.length());
+    }
+
+    public synchronized float getHitRate() {
+        long lookups = hits + misses;
+        return lookups > 0 ? (float) hits / lookups : 0;
+    }
+
+    public synchronized ObjectNode toJSON() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("entries", entries.size());
+        node.put("bytes", bytes);
+        node.put("max_bytes", maxBytes);
+        node.put("hits", hits);
+        node.put("misses", misses);
+        node.put("evictions", evictions);
+        node.put("hit_rate", getHitRate());
+        return node;
+    }
+}
@@ -0,0 +1,39 @@
+package org.chernovia.lib.chess;
+
+/**
+ * A UCI "bestmove" line
+ */
+public class BestMove {
+
+    public final String move;
+    public final String ponder; //null if the engine didn't suggest one
+
+    public BestMove(String move, String ponder) {
+        this.move = move;
+        this.ponder = ponder;
+    }
+
+    /**
+     * Parses the line text[from, to)
+     *
+     * @return the move, or null if it isn't a bestmove line (or the engine had no move)
+     */
+    public static BestMove parse(String text, int from, int to) {
+        int i = InfoRecord.skipSpaces(text, from, to), end = InfoRecord.tokenEnd(text, i, to);
+        if (!InfoRecord.token(text, i, end, "bestmove")) return null;
+        i = InfoRecord.skipSpaces(text, end, to); end = InfoRecord.tokenEnd(text, i, to);
+        if (i == end || InfoRecord.token(text, i, end, "(none)")) return null;
+        String move = text.substring(i, end), ponder = null;
+        i = InfoRecord.skipSpaces(text, end, to); end = InfoRecord.tokenEnd(text, i, to);
+        if (InfoRecord.token(text, i, end, "ponder")) {
+            i = InfoRecord.skipSpaces(text, end, to); end = InfoRecord.tokenEnd(text, i, to);
+            if (i < end) ponder = text.substring(i, end);
+        }
+        return new BestMove(move, ponder);
+    }
+
+    @Override
+    public String toString() {
+        return move + (ponder != null ? " (" + ponder + ")" : "");
+    }
+}
@@ -0,0 +1,97 @@
+package org.chernovia.lib.chess;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * What the engine pool and service need from an engine. Search output is UCI text
+ * (info lines followed by a bestmove line) whatever the engine, so the same parsers serve all of them.
+ */
+public interface ChessEngine {
+
+    /**
+     * @param path engine binary (ignored by in-process engines)
+     * @return True on success
+     */
+    boolean startEngine(String path);
+
+    String getID();
+
+    /**
+     * @param position arguments to the UCI position command (e.g. "startpos moves e2e4")
+     * @param waitTime in milliseconds
+     * @param multiPv  number of principal variations to report
+     * @return a future completed with the raw search output (ending with bestmove)
+     */
+    default CompletableFuture<String> searchPosition(String position, int waitTime, int multiPv) {
+        return searchPosition(position, waitTime, multiPv, null);
+    }
+
+    /**
+     * As above, but only considering the given root moves
+     *
+     * @param searchMoves space separated UCI moves (null for all legal moves)
+     */
+    default CompletableFuture<String> searchPosition(String position, int waitTime, int multiPv, String searchMoves) {
+        return searchPosition(position, waitTime, multiPv, searchMoves, null);
+    }
+
+    /**
+     * As above, reporting each info line while the search runs
+     *
+     * @param progress called (on the engine's thread) with every info line as it arrives (may be null)
+     */
+    CompletableFuture<String> searchPosition(String position, int waitTime, int multiPv, String searchMoves,
+                                             Consumer<String> progress);
+
+    default CompletableFuture<String> startSearch(String fen, int waitTime, int multiPv) {
+        return searchPosition("fen " + fen, waitTime, multiPv);
+    }
+
+    /**
+     * Called when a search is handed to the engine, before it's started, so that a stop arriving
+     * in between isn't lost (engines that ignore a stop before the go don't need it)
+     */
+    default void prepareSearch() {
+    }
+
+    /**
+     * Asks a running search to finish now (it still completes with a bestmove)
+     */
+    void stopSearch();
+
+    /**
+     * Stops any running search and discards its output
+     *
+     * @return false if the engine didn't respond
+     */
+    boolean abortSearch();
+
+    /**
+     * @return True if the engine is alive and responded in time
+     */
+    boolean probe(long timeout);
+
+    void setOptions(int threads, int hashSize);
+
+    /**
+     * @param elo playing strength (0 or less for full strength)
+     */
+    void setElo(int elo);
+
+    /**
+     * Clears any state left by the previous game
+     *
+     * @return false if the engine didn't respond
+     */
+    boolean newGame();
+
+    boolean isAlive();
+
+    /**
+     * Ends an unresponsive engine
+     */
+    void kill();
+
+    void stopEngine();
+}
@@ -0,0 +1,212 @@
+package org.chernovia.lib.chess;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.chernovia.molechess.MoleServ;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of pre-started engines (normally Stockfish processes), leased out one search at a time
+ * so that AI moves no longer pay for a fresh process (and NNUE load) on every vote.
+ */
+public class EnginePool {
+
+    private final LinkedBlockingQueue<ChessEngine> idle = new LinkedBlockingQueue<>();
+    private final Supplier<ChessEngine> factory;
+    private final String path;
+    private final int size, threads, hashSize;
+    private final AtomicInteger alive = new AtomicInteger(0);
+    private final AtomicInteger leased = new AtomicInteger(0);
+    private final AtomicInteger peakLeased = new AtomicInteger(0);
+    private final AtomicLong leases = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong respawns = new AtomicLong(0);
+    private final AtomicLong totalWait = new AtomicLong(0);
+    private final AtomicLong maxWait = new AtomicLong(0);
+    private volatile boolean closed = false;
+    private volatile EngineSupervisor supervisor;
+
+    /**
+     * Starts and warms up the pool's engines
+     *
+     * @param path     Stockfish binary
+     * @param size     number of engine processes
+     * @param threads  UCI Threads option per engine
+     * @param hashSize UCI Hash option (MB) per engine
+     */
+    public EnginePool(String path, int size, int threads, int hashSize) {
+        this(StockPlug::new, path, size, threads, hashSize);
+    }
+
+    /**
+     * @param factory creates each engine (e.g. an in-process {@link JavaEngine})
+     */
+    public EnginePool(Supplier<ChessEngine> factory, String path, int size, int threads, int hashSize) {
+        this.factory = factory;
+        this.path = path;
+        this.size = size;
+        this.threads = threads;
+        this.hashSize = hashSize;
+        for (int i = 0; i < size; i++) {
+            ChessEngine engine = spawn();
+            if (engine != null) idle.add(engine);
+        }
+        MoleServ.log("Engine pool: " + alive.get() + "/" + size + " engines started");
+    }
+
+    /**
+     * Picks a pool size: the configured size if given, otherwise one engine per spare core
+     *
+     * @param requested configured size (0 or less for automatic)
+     * @return pool size
+     */
+    public static int defaultSize(int requested) {
+        if (requested > 0) return requested;
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    private ChessEngine spawn() {
+        ChessEngine engine = factory.get();
+        if (!engine.startEngine(path)) return null;
+        engine.setOptions(threads, hashSize);
+        if (!engine.probe(StockPlug.READY_TIMEOUT)) {
+            engine.kill(); return null;
+        }
+        alive.incrementAndGet();
+        return engine;
+    }
+
+    void setSupervisor(EngineSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getAlive() {
+        return alive.get();
+    }
+
+    public boolean isAvailable() {
+        return !closed && alive.get() > 0;
+    }
+
+    /**
+     * Borrows an idle engine, waiting up to the given time for one to be released
+     *
+     * @param timeout maximum wait in milliseconds
+     * @param elo     UCI_Elo for the borrowed engine
+     * @return a ready engine, or null if none became available in time
+     */
+    public ChessEngine lease(long timeout, int elo) throws InterruptedException {
+        if (!isAvailable()) return null;
+        long t = System.currentTimeMillis();
+        ChessEngine engine = idle.poll(timeout, TimeUnit.MILLISECONDS);
+        long wait = System.currentTimeMillis() - t;
+        totalWait.addAndGet(wait);
+        maxWait.accumulateAndGet(wait, Math::max);
+        if (engine == null) {
+            timeouts.incrementAndGet(); return null;
+        }
+        leases.incrementAndGet();
+        peakLeased.accumulateAndGet(leased.incrementAndGet(), Math::max);
+        engine.setElo(elo);
+        return engine;
+    }
+
+    /**
+     * Returns an engine to the pool, clearing its game state (or replacing it if the process has died)
+     *
+     * @param engine a previously leased engine
+     */
+    public void release(ChessEngine engine) {
+        if (engine == null) return;
+        leased.decrementAndGet();
+        if (closed) {
+            engine.stopEngine(); alive.decrementAndGet(); return;
+        }
+        if (engine.isAlive() && engine.newGame()) idle.add(engine);
+        else {
+            MoleServ.log("Engine " + engine.getID() + " died, respawning");
+            lose(engine);
+        }
+    }
+
+    private void lose(ChessEngine engine) {
+        engine.kill();
+        alive.decrementAndGet();
+        respawns.incrementAndGet();
+        if (supervisor != null) supervisor.engineLost();
+        else respawn();
+    }
+
+    /**
+     * Starts a replacement engine
+     *
+     * @return True on success (or if the pool has been shut down)
+     */
+    boolean respawn() {
+        if (closed) return true;
+        ChessEngine engine = spawn();
+        if (engine == null) return false;
+        idle.add(engine);
+        return true;
+    }
+
+    /**
+     * Checks each idle engine answers isready, replacing any that don't
+     *
+     * @param timeout maximum time in milliseconds to wait for each engine
+     * @return number of engines replaced
+     */
+    int probeIdle(long timeout) {
+        int lost = 0;
+        for (int i = idle.size(); i > 0 && !closed; i--) {
+            ChessEngine engine = idle.poll();
+            if (engine == null) break;
+            if (engine.probe(timeout)) idle.add(engine);
+            else {
+                lose(engine); lost++;
+            }
+        }
+        return lost;
+    }
+
+    public void shutdown() {
+        closed = true;
+        ChessEngine engine;
+        while ((engine = idle.poll()) != null) {
+            engine.stopEngine(); alive.decrementAndGet();
+        }
+    }
+
+    public ObjectNode toJSON() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        long n = leases.get(), tries = n + timeouts.get();
+        node.put("size", size);
+        node.put("alive", alive.get());
+        node.put("leased", leased.get());
+        node.put("peak_leased", peakLeased.get());
+        node.put("utilisation", size > 0 ? (float) leased.get() / size : 0);
+        node.put("leases", n);
+        node.put("lease_timeouts", timeouts.get());
+        node.put("avg_wait_ms", tries > 0 ? (float) totalWait.get() / tries : 0);
+        node.put("max_wait_ms", maxWait.get());
+        node.put("respawns", respawns.get());
+        return node;
+    }
+}
@@ -0,0 +1,81 @@
+package org.chernovia.lib.chess;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one engine search
+ */
+public class EngineResult {
+
+    /**
+     * One principal variation of a MultiPV search
+     */
+    public static class Line {
+        public final String move;
+        public final int score;
+        public final boolean mate;
+
+        /**
+         * @param move  first move of the variation in UCI notation
+         * @param score centipawns, or moves to mate if mate is true
+         * @param mate  whether the score is a mate distance
+         */
+        public Line(String move, int score, boolean mate) {
+            this.move = move;
+            this.score = score;
+            this.mate = mate;
+        }
+
+        /**
+         * @return the score in centipawns, with mates mapped beyond any material score
+         */
+        public int centipawns() {
+            if (!mate) return score;
+            return score > 0 ? 100000 - score : -100000 - score;
+        }
+
+        @Override
+        public String toString() {
+            return move + " (" + (mate ? "#" + score : score) + ")";
+        }
+    }
+
+    public final String fen;
+    public final String bestMove;
+    public final float eval;
+    public final long elapsed;
+    public final List<Line> lines;
+    public final int depth;
+    public final long nodes;
+
+    /**
+     * @param fen      the searched position
+     * @param bestMove best move in UCI notation
+     * @param eval     score in pawns from the side to move's point of view (999 for mate)
+     * @param elapsed  time in milliseconds from request to result
+     */
+    public EngineResult(String fen, String bestMove, float eval, long elapsed) {
+        this(fen, bestMove, eval, elapsed, Collections.emptyList(), 0, 0);
+    }
+
+    /**
+     * @param lines MultiPV variations, best first
+     * @param depth depth reached
+     * @param nodes nodes searched
+     */
+    public EngineResult(String fen, String bestMove, float eval, long elapsed, List<Line> lines, int depth, long nodes) {
+        this.fen = fen;
+        this.bestMove = bestMove;
+        this.eval = eval;
+        this.elapsed = elapsed;
+        this.lines = lines;
+        this.depth = depth;
+        this.nodes = nodes;
+    }
+
+    @Override
+    public String toString() {
+        return bestMove + " (" + eval + ", " + elapsed + "ms)" + (lines.size() > 1 ? " " + lines : "");
+    }
+}
@@ -0,0 +1,480 @@
+package org.chernovia.lib.chess;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous front end to an {@link EnginePool}: searches run on a fixed number of CPU slots and
+ * complete a future, which fails if the search can't finish before its deadline and can be
+ * cancelled (stopping the engine) when the result is no longer wanted.
+ * Waiting searches are run by priority class, then earliest deadline first.
+ */
+public class EngineService {
+
+    /**
+     * Search classes, most urgent first
+     */
+    public enum PRIORITY {LIVE, SPECULATIVE, ANALYSIS}
+
+    /**
+     * How long (ms) an engine still running at the deadline gets to answer a stop with its bestmove
+     */
+    public static final long STOP_GRACE = 500;
+
+    /**
+     * One requested search
+     */
+    private class Search implements Runnable, Comparable<Search> {
+        final String fen, searchMoves; //null to search every move
+        final EngineSession session; //null for a pooled (cold) search
+        final int elo, moveTime, multiPv;
+        final long deadline, seq = sequence.incrementAndGet();
+        final PRIORITY priority;
+        final Consumer<String> progress; //may be null
+        final CompletableFuture<EngineResult> future = new CompletableFuture<>();
+        final AtomicReference<ChessEngine> engine = new AtomicReference<>();
+
+        Search(String fen, EngineSession session, int elo, int moveTime, int multiPv, long deadline,
+               PRIORITY priority) {
+            this(fen, null, session, elo, moveTime, multiPv, deadline, priority, null);
+        }
+
+        Search(String fen, String searchMoves, EngineSession session, int elo, int moveTime, int multiPv,
+               long deadline, PRIORITY priority, Consumer<String> progress) {
+            this.fen = fen;
+            this.searchMoves = searchMoves;
+            this.session = session;
+            this.elo = elo;
+            this.moveTime = moveTime;
+            this.multiPv = multiPv;
+            this.deadline = deadline;
+            this.priority = priority;
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            search(this);
+        }
+
+        @Override
+        public int compareTo(Search other) {
+            if (priority != other.priority) return priority.compareTo(other.priority);
+            if (deadline != other.deadline) return Long.compare(deadline, other.deadline);
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Search effort totals, used to compare warm session searches with cold pooled ones
+     */
+    private static class SearchStats {
+        final AtomicLong searches = new AtomicLong(0), millis = new AtomicLong(0);
+        final AtomicLong depth = new AtomicLong(0), nodes = new AtomicLong(0);
+
+        void add(EngineResult result, int searchTime) {
+            searches.incrementAndGet();
+            millis.addAndGet(searchTime);
+            depth.addAndGet(result.depth);
+            nodes.addAndGet(result.nodes);
+        }
+
+        ObjectNode toJSON() {
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            long n = searches.get(), ms = millis.get();
+            node.put("searches", n);
+            node.put("avg_depth", n > 0 ? (float) depth.get() / n : 0);
+            node.put("depth_per_sec", ms > 0 ? depth.get() * 1000f / ms : 0);
+            node.put("nodes_per_ms", ms > 0 ? (float) nodes.get() / ms : 0);
+            return node;
+        }
+    }
+
+    private final EnginePool pool;
+    private final EngineSupervisor supervisor;
+    private final AnalysisCache cache;
+    private final ThreadPoolExecutor executor;
+    private final int slots, queueSize;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final Set<Search> running = ConcurrentHashMap.newKeySet();
+    private final AtomicLong preempted = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong cancelled = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicInteger speculating = new AtomicInteger(0);
+    private final AtomicLong speculated = new AtomicLong(0);
+    private final AtomicLong overBudget = new AtomicLong(0);
+    private final AtomicInteger sessions = new AtomicInteger(0);
+    private final SearchStats coldStats = new SearchStats(), sessionStats = new SearchStats();
+    private final SearchStats lightStats = new SearchStats();
+    private volatile EnginePool lightPool;
+    private volatile int lightElo = 0;
+    private volatile int speculativeBudget = 0;
+    private volatile int maxSessions = 0, sessionHash = 0;
+
+    /**
+     * @param pool      engines to search with
+     * @param slots     maximum number of searches running at once (see {@link #defaultSlots})
+     * @param queueSize maximum number of searches waiting for a slot
+     * @param cache     previously searched positions (may be null)
+     */
+    public EngineService(EnginePool pool, int slots, int queueSize, AnalysisCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+        this.slots = Math.max(1, slots);
+        this.queueSize = queueSize;
+        supervisor = new EngineSupervisor(pool);
+        AtomicInteger n = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(this.slots, this.slots, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "EngineService-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Picks the number of concurrent searches: the configured number if given, otherwise as many
+     * as fit on the spare cores (one core is left for the server's own threads)
+     *
+     * @param requested configured slots (0 or less for automatic)
+     * @param threads   UCI Threads option of each engine
+     * @return search slots
+     */
+    public static int defaultSlots(int requested, int threads) {
+        if (requested > 0) return requested;
+        return Math.max(1, (Runtime.getRuntime().availableProcessors() - 1) / Math.max(1, threads));
+    }
+
+    /**
+     * @return false if there are no engines or the circuit breaker is open
+     */
+    public boolean isAvailable() {
+        if (executor.isShutdown()) return false;
+        return (pool.isAvailable() && !supervisor.isOpen()) || (lightPool != null && lightPool.isAvailable());
+    }
+
+    /**
+     * @return whether every slot is taken or searches are waiting for one (background work should hold off)
+     */
+    public boolean isBusy() {
+        return running.size() >= slots || !executor.getQueue().isEmpty();
+    }
+
+    /**
+     * @param budget maximum number of speculative searches (e.g. pondering) running at once
+     */
+    public void setSpeculativeBudget(int budget) {
+        speculativeBudget = budget;
+    }
+
+    /**
+     * Adds a pool of in-process engines, used for searches at or below the given strength and whenever
+     * Stockfish is unavailable
+     *
+     * @param pool   e.g. a pool of {@link JavaEngine}s
+     * @param maxElo strongest search sent to the pool regardless of Stockfish
+     */
+    public void setLightPool(EnginePool pool, int maxElo) {
+        lightPool = pool;
+        lightElo = maxElo;
+    }
+
+    /**
+     * @param max      maximum number of open game sessions (0 disables them)
+     * @param hashSize UCI Hash option (MB) for each session's engine
+     */
+    public void setSessionLimits(int max, int hashSize) {
+        maxSessions = max;
+        sessionHash = hashSize;
+    }
+
+    /**
+     * Starts an engine dedicated to one game
+     *
+     * @param startFen the game's starting position
+     * @return the session, or null if the session limit is reached or the engine won't start
+     */
+    public EngineSession openSession(String startFen) {
+        if (!pool.isAvailable() || supervisor.isOpen()) return null;
+        if (sessions.incrementAndGet() > maxSessions) {
+            sessions.decrementAndGet(); return null;
+        }
+        EngineSession session = new EngineSession(pool.getPath(), startFen, pool.getThreads(), sessionHash);
+        if (!session.isOpen()) {
+            sessions.decrementAndGet(); return null;
+        }
+        supervisor.watch(session);
+        return session;
+    }
+
+    /**
+     * Closes a session from {@link #openSession}
+     */
+    public void closeSession(EngineSession session) {
+        if (session != null) {
+            supervisor.unwatch(session);
+            session.close(); sessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * Requests the best move for a position
+     *
+     * @param fen      Position string
+     * @param elo      UCI_Elo to search at
+     * @param moveTime search time in milliseconds
+     * @param deadline wall clock time (ms) by which the result must be ready
+     * @return a future completed with the result, or exceptionally (e.g. with a TimeoutException)
+     */
+    public CompletableFuture<EngineResult> bestMove(String fen, int elo, int moveTime, long deadline) {
+        return analyze(fen, elo, moveTime, 1, deadline);
+    }
+
+    /**
+     * Requests several candidate moves from a single MultiPV search
+     *
+     * @param multiPv number of variations (see {@link EngineResult#lines})
+     */
+    public CompletableFuture<EngineResult> analyze(String fen, int elo, int moveTime, int multiPv, long deadline) {
+        return analyze(fen, elo, moveTime, multiPv, deadline, PRIORITY.LIVE);
+    }
+
+    /**
+     * @param priority search class; speculative searches (nobody is waiting on the result yet) are refused
+     *                 (with a RejectedExecutionException) beyond the speculative budget, and running
+     *                 speculative or analysis searches are cancelled to make room for live ones
+     */
+    public CompletableFuture<EngineResult> analyze(String fen, int elo, int moveTime, int multiPv, long deadline,
+                                                   PRIORITY priority) {
+        return submit(new Search(fen, null, elo, moveTime, multiPv, deadline, priority));
+    }
+
+    /**
+     * Scores the given moves (and no others) from one search, one line per move
+     *
+     * @param moves UCI moves to compare
+     */
+    public CompletableFuture<EngineResult> analyze(String fen, int elo, int moveTime, Collection<String> moves,
+                                                   long deadline, PRIORITY priority) {
+        return submit(new Search(fen, String.join(" ", moves), null, elo, moveTime, moves.size(), deadline, priority,
+                null));
+    }
+
+    /**
+     * Searches for the best move, reporting progress while the search runs
+     *
+     * @param progress called with each info line as it arrives (not at all for a cached result)
+     */
+    public CompletableFuture<EngineResult> watch(String fen, int elo, int moveTime, long deadline, PRIORITY priority,
+                                                 Consumer<String> progress) {
+        return submit(new Search(fen, null, null, elo, moveTime, 1, deadline, priority, progress));
+    }
+
+    /**
+     * Searches a game's current position on the game's own engine
+     *
+     * @param session the game's session (its move list must lead to the given position)
+     * @param fen     the current position (used for caching and the result)
+     */
+    public CompletableFuture<EngineResult> analyze(EngineSession session, String fen, int elo, int moveTime,
+                                                   int multiPv, long deadline) {
+        return submit(new Search(fen, session, elo, moveTime, multiPv, deadline, PRIORITY.LIVE));
+    }
+
+    private CompletableFuture<EngineResult> submit(Search search) {
+        CompletableFuture<EngineResult> future = search.future;
+        String key = cache == null ? null : AnalysisCache.key(search.fen, search.elo, search.moveTime, search.multiPv) +
+                (search.searchMoves != null ? "|" + search.searchMoves : "");
+        if (key != null) {
+            EngineResult cached = cache.get(key);
+            if (cached != null) return CompletableFuture.completedFuture(cached);
+        }
+        if (supervisor.isOpen() && lightPool == null) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("Engine circuit open"));
+            return future;
+        }
+        if (search.priority == PRIORITY.SPECULATIVE) {
+            if (speculating.incrementAndGet() > speculativeBudget) {
+                speculating.decrementAndGet(); overBudget.incrementAndGet();
+                future.completeExceptionally(new RejectedExecutionException("Speculative budget exceeded"));
+                return future;
+            }
+            speculated.incrementAndGet();
+            future.whenComplete((result, err) -> speculating.decrementAndGet());
+        }
+        if (key != null) future.thenAccept(result -> cache.put(key, result));
+        try {
+            if (executor.getQueue().size() >= queueSize) throw new RejectedExecutionException("Engine queue full");
+            executor.execute(search);
+            future.whenComplete((result, err) -> {
+                if (future.isCancelled()) {
+                    cancelled.incrementAndGet();
+                    executor.remove(search);
+                    synchronized (search) { //only while the engine is still this search's
+                        ChessEngine engine = search.engine.get();
+                        if (engine != null) engine.stopSearch(); //the worker still gets (and discards) its bestmove
+                    }
+                }
+            });
+            if (search.priority == PRIORITY.LIVE) preempt();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Frees a slot for a waiting live search by cancelling the least urgent running background search
+     */
+    private void preempt() {
+        if (running.size() < slots) return;
+        Search victim = null;
+        for (Search search : running) {
+            if (search.priority != PRIORITY.LIVE && !search.future.isDone() && (victim == null || search.compareTo(victim) > 0)) victim = search;
+        }
+        if (victim != null && victim.future.cancel(false)) preempted.incrementAndGet();
+    }
+
+    /**
+     * Requests the evaluation of a position (the best move is included in the result)
+     */
+    public CompletableFuture<EngineResult> evaluate(String fen, int elo, int moveTime, long deadline) {
+        return bestMove(fen, elo, moveTime, deadline);
+    }
+
+    private void search(Search search) {
+        CompletableFuture<EngineResult> future = search.future;
+        if (future.isDone()) return;
+        long start = System.currentTimeMillis(), deadline = search.deadline;
+        running.add(search);
+        boolean light = lightPool != null && ((search.elo > 0 && search.elo <= lightElo) || //0 is full strength
+                (search.session == null && !pool.isAvailable()));
+        EngineSession session = light ? null : search.session; //a weak game searches light, from its session's position
+        if (!light && !supervisor.allowRequest()) {
+            if (search.session == null && lightPool != null) light = true; //Stockfish isn't answering
+            else {
+                running.remove(search);
+                rejected.incrementAndGet();
+                future.completeExceptionally(new RejectedExecutionException("Engine circuit open"));
+                return;
+            }
+        }
+        EnginePool source = light ? lightPool : pool;
+        ChessEngine engine = null;
+        boolean reported = light; //the breaker only tracks Stockfish
+        try {
+            long budget = deadline - start; //when it's shorter than the move time, wait at most half and search the rest
+            long wait = Math.max(0, Math.max(budget - search.moveTime, budget / 2));
+            engine = session != null ? session.acquire(wait, search.elo) : source.lease(wait, search.elo);
+            if (engine == null) throw new TimeoutException("No engine available before deadline");
+            long now = System.currentTimeMillis();
+            int searchTime = (int) Math.min(search.moveTime, deadline - now);
+            if (searchTime <= 0) throw new TimeoutException("Deadline passed");
+            synchronized (search) { //accepted: from here a cancel stops the engine
+                if (future.isDone()) return;
+                engine.prepareSearch();
+                search.engine.set(engine);
+            }
+            CompletableFuture<String> started = search.session != null ?
+                    engine.searchPosition(search.session.getPosition(), searchTime, search.multiPv) :
+                    engine.searchPosition("fen " + search.fen, searchTime, search.multiPv, search.searchMoves,
+                            search.progress);
+            if (future.isDone()) engine.stopSearch(); //cancelled before the go, which Stockfish would ignore
+            String output;
+            try {
+                output = started.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) { //still thinking at the deadline: take what it has
+                engine.stopSearch();
+                output = started.get(STOP_GRACE, TimeUnit.MILLISECONDS);
+            }
+            synchronized (search) {
+                search.engine.set(null);
+            }
+            String move = StockPlug.parseBestMove(output);
+            if (move == null) {
+                if (!reported) supervisor.recordFailure();
+                if (future.completeExceptionally(new IllegalStateException("No bestmove for: " + search.fen))) {
+                    failed.incrementAndGet();
+                }
+            }
+            else {
+                List<EngineResult.Line> lines = StockPlug.parseLines(output);
+                float eval = lines.isEmpty() ? StockPlug.parseEval(output) : //with MultiPV the last score may be any line
+                        (lines.get(0).mate ? 999 : lines.get(0).score / 100f);
+                InfoRecord last = StockPlug.parseLastInfo(output);
+                EngineResult result = new EngineResult(search.fen, move, eval, System.currentTimeMillis() - start,
+                        lines, last.depth, last.nodes);
+                (session != null ? sessionStats : light ? lightStats : coldStats).add(result, searchTime);
+                if (!reported) supervisor.recordSuccess();
+                if (future.complete(result)) completed.incrementAndGet();
+            }
+            reported = true;
+        } catch (TimeoutException | ExecutionException e) {
+            if (engine != null && search.engine.get() != null) { //the engine itself failed
+                if (!engine.abortSearch()) engine.kill(); //hung: the pool (or the supervisor, for a session) replaces it
+                if (!reported) supervisor.recordFailure();
+                reported = true;
+            }
+            if (future.completeExceptionally(e)) failed.incrementAndGet();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+        } finally {
+            if (!reported) supervisor.recordAbandoned();
+            running.remove(search);
+            synchronized (search) {
+                search.engine.set(null);
+            }
+            if (session != null) {
+                if (engine != null) session.release();
+            }
+            else source.release(engine);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        supervisor.shutdown();
+        pool.shutdown();
+        if (lightPool != null) lightPool.shutdown();
+    }
+
+    public ObjectNode toJSON() {
+        ObjectNode node = pool.toJSON();
+        node.put("queued", executor.getQueue().size());
+        node.put("slots", slots);
+        node.put("active", executor.getActiveCount());
+        node.put("preempted", preempted.get());
+        node.put("completed", completed.get());
+        node.put("failed", failed.get());
+        node.put("cancelled", cancelled.get());
+        node.put("rejected", rejected.get());
+        node.put("speculating", speculating.get());
+        node.put("speculated", speculated.get());
+        node.put("speculative_over_budget", overBudget.get());
+        node.put("sessions", sessions.get());
+        node.set("cold_searches", coldStats.toJSON());
+        node.set("session_searches", sessionStats.toJSON());
+        if (lightPool != null) {
+            ObjectNode light = lightPool.toJSON();
+            light.put("max_elo", lightElo);
+            light.setAll(lightStats.toJSON());
+            node.set("light", light);
+        }
+        node.set("supervisor", supervisor.toJSON());
+        if (cache != null) node.set("cache", cache.toJSON());
+        return node;
+    }
+}
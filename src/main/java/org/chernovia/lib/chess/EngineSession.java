@@ -0,0 +1,107 @@
+package org.chernovia.lib.chess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An engine bound to a single game for its lifetime: positions are sent as the game's move list
+ * and the hash is never cleared, so each search starts from what the previous ones learned.
+ * The {@link EngineSupervisor} probes it while idle, restarting its engine if it's died or stopped answering.
+ */
+public class EngineSession {
+
+    private volatile StockPlug engine;
+    private final Semaphore lock = new Semaphore(1);
+    private final String path, startFen;
+    private final int threads, hashSize;
+    private final List<String> moves = new ArrayList<>();
+    private int elo = -1;
+    private volatile boolean open;
+
+    /**
+     * @param startFen the game's starting position
+     */
+    EngineSession(String path, String startFen, int threads, int hashSize) {
+        this.path = path; this.startFen = startFen; this.threads = threads; this.hashSize = hashSize;
+        open = start();
+    }
+
+    private synchronized boolean start() {
+        engine = new StockPlug(); elo = -1;
+        if (!engine.startEngine(path)) return false;
+        engine.setOptions(threads, hashSize);
+        engine.newGame();
+        return true;
+    }
+
+    public boolean isOpen() {
+        return open && engine.isAlive();
+    }
+
+    /**
+     * Records the game's moves so far (only the new ones are appended)
+     *
+     * @param gameMoves every move of the game in UCI notation
+     */
+    public synchronized void setMoves(List<String> gameMoves) {
+        if (gameMoves.size() < moves.size() || !gameMoves.subList(0, moves.size()).equals(moves)) moves.clear();
+        moves.addAll(gameMoves.subList(moves.size(), gameMoves.size()));
+    }
+
+    synchronized String getPosition() {
+        StringBuilder position = new StringBuilder(StockPlug.isStartPosition(startFen) ?
+                "startpos" : "fen " + startFen);
+        if (!moves.isEmpty()) {
+            position.append(" moves");
+            for (String move : moves) position.append(" ").append(move);
+        }
+        return position.toString();
+    }
+
+    /**
+     * Waits for exclusive use of the session's engine
+     *
+     * @return the engine, or null on timeout or if the session is closed
+     */
+    ChessEngine acquire(long timeout, int strength) throws InterruptedException {
+        if (!isOpen() || !lock.tryAcquire(Math.max(0, timeout), TimeUnit.MILLISECONDS)) return null;
+        if (elo != strength) {
+            engine.setElo(strength); elo = strength;
+        }
+        return engine;
+    }
+
+    void release() {
+        lock.release();
+    }
+
+    /**
+     * Checks the engine answers if the session's idle, replacing it if it doesn't
+     * (the game's next search sends the whole move list, so nothing is lost but the hash)
+     *
+     * @return false if the engine had to be replaced
+     */
+    boolean probe(long timeout) {
+        if (!open || !lock.tryAcquire()) return true; //in use: the search itself will tell
+        try {
+            if (engine.probe(timeout)) return true;
+            engine.kill();
+            synchronized (this) {
+                if (open && !start()) engine.kill(); //tried again at the next probe
+            }
+            return false;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Quits the engine, releasing its memory
+     */
+    public synchronized void close() {
+        open = false;
+        engine.stopEngine();
+    }
+}
@@ -0,0 +1,168 @@
+package org.chernovia.lib.chess;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.chernovia.molechess.MoleServ;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps an {@link EnginePool} healthy: probes idle engines with isready, replaces dead or hung ones
+ * (with exponential backoff if they won't restart) and trips a circuit breaker after repeated
+ * failures, so callers can fall back instead of waiting on engines that aren't answering.
+ * Game sessions' engines, which live outside the pool, are probed and replaced the same way.
+ */
+public class EngineSupervisor {
+
+    public enum BREAKER {CLOSED, OPEN, HALF_OPEN}
+
+    public static long PROBE_INTERVAL = 30000, PROBE_TIMEOUT = 2000;
+    public static int FAILURE_THRESHOLD = 3;
+    public static long COOLDOWN = 30000, MIN_BACKOFF = 1000, MAX_BACKOFF = 60000;
+
+    private final EnginePool pool;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger restarting = new AtomicInteger(0);
+    private final AtomicLong probes = new AtomicLong(0);
+    private final AtomicLong probeFailures = new AtomicLong(0);
+    private final AtomicLong restarts = new AtomicLong(0);
+    private final AtomicLong restartFailures = new AtomicLong(0);
+    private final AtomicLong trips = new AtomicLong(0);
+    private final Set<EngineSession> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sessionRestarts = new AtomicLong(0);
+    private BREAKER state = BREAKER.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private boolean trialRunning = false;
+
+    public EngineSupervisor(EnginePool pool) {
+        this.pool = pool;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "EngineSupervisor");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.setSupervisor(this);
+        for (int i = pool.getAlive(); i < pool.getSize(); i++) engineLost(); //failed to start
+        scheduler.scheduleWithFixedDelay(this::probe, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        int n = pool.probeIdle(PROBE_TIMEOUT);
+        for (EngineSession session : sessions) {
+            if (!session.probe(PROBE_TIMEOUT)) {
+                n++; sessionRestarts.incrementAndGet();
+            }
+        }
+        probes.incrementAndGet();
+        if (n > 0) {
+            probeFailures.addAndGet(n);
+            MoleServ.log("Engine probe: " + n + " unresponsive engine(s) replaced");
+        }
+    }
+
+    void watch(EngineSession session) {
+        sessions.add(session);
+    }
+
+    void unwatch(EngineSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * Called by the pool when it loses an engine: a replacement is started in the background
+     */
+    void engineLost() {
+        restarting.incrementAndGet();
+        restart(0);
+    }
+
+    private void restart(int attempt) {
+        long delay = attempt == 0 ? 0 : Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempt - 1, 16));
+        try {
+            scheduler.schedule(() -> {
+                if (pool.respawn()) {
+                    restarts.incrementAndGet(); restarting.decrementAndGet();
+                }
+                else {
+                    restartFailures.incrementAndGet(); recordFailure();
+                    restart(attempt + 1);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) { //shut down
+            restarting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return whether the breaker is refusing requests (without claiming a half-open trial)
+     */
+    public synchronized boolean isOpen() {
+        return state == BREAKER.OPEN && System.currentTimeMillis() - openedAt < COOLDOWN;
+    }
+
+    /**
+     * Asks to run a search: always allowed when closed, never while open, and one trial search at a time
+     * once the cooldown has passed. Every allowed request must end with {@link #recordSuccess},
+     * {@link #recordFailure} or {@link #recordAbandoned}.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == BREAKER.OPEN && !isOpen()) {
+            state = BREAKER.HALF_OPEN; trialRunning = false;
+        }
+        if (state == BREAKER.HALF_OPEN) {
+            if (trialRunning) return false;
+            trialRunning = true;
+        }
+        return state != BREAKER.OPEN;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0; trialRunning = false;
+        if (state != BREAKER.CLOSED) MoleServ.log("Engine circuit closed");
+        state = BREAKER.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        failures++; trialRunning = false;
+        if (state == BREAKER.HALF_OPEN || (state == BREAKER.CLOSED && failures >= FAILURE_THRESHOLD)) {
+            state = BREAKER.OPEN; openedAt = System.currentTimeMillis();
+            trips.incrementAndGet();
+            MoleServ.log("Engine circuit open after " + failures + " failures");
+        }
+    }
+
+    /**
+     * Ends an allowed request that never reached the engine (cancelled, no engine free, etc.)
+     */
+    public synchronized void recordAbandoned() {
+        trialRunning = false;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public synchronized ObjectNode toJSON() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        if (state == BREAKER.OPEN && !isOpen()) node.put("breaker", BREAKER.HALF_OPEN.name());
+        else node.put("breaker", state.name());
+        node.put("consecutive_failures", failures);
+        node.put("trips", trips.get());
+        node.put("probes", probes.get());
+        node.put("probe_failures", probeFailures.get());
+        node.put("restarting", restarting.get());
+        node.put("restarts", restarts.get());
+        node.put("restart_failures", restartFailures.get());
+        node.put("sessions", sessions.size());
+        node.put("session_restarts", sessionRestarts.get());
+        return node;
+    }
+}
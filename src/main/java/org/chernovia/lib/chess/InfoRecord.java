@@ -0,0 +1,150 @@
+package org.chernovia.lib.chess;
+
+/**
+ * One UCI "info" line, parsed in place: the tokenizer walks the engine output without splitting or
+ * copying it, and a record can be reused for every line of a search.
+ * The pv is kept as a range of the source text and only turned into strings on request.
+ */
+public class InfoRecord {
+
+    public int depth, seldepth, multipv, score, time, hashfull;
+    public long nodes, nps;
+    public boolean hasScore, mate, lowerbound, upperbound;
+    private String source;
+    private int pvStart, pvEnd;
+
+    public InfoRecord() {
+        reset();
+    }
+
+    private void reset() {
+        depth = seldepth = score = time = hashfull = 0; multipv = 1;
+        nodes = nps = 0;
+        hasScore = mate = lowerbound = upperbound = false;
+        source = null; pvStart = pvEnd = -1;
+    }
+
+    /**
+     * Parses the line text[from, to)
+     *
+     * @return false (leaving the record empty) if it isn't an info line
+     */
+    public boolean parse(String text, int from, int to) {
+        reset();
+        int i = skipSpaces(text, from, to), end = tokenEnd(text, i, to);
+        if (!token(text, i, end, "info")) return false;
+        i = skipSpaces(text, end, to);
+        while (i < to) {
+            end = tokenEnd(text, i, to);
+            int next = skipSpaces(text, end, to), nextEnd = tokenEnd(text, next, to);
+            if (token(text, i, end, "depth")) depth = (int) number(text, next, nextEnd);
+            else if (token(text, i, end, "seldepth")) seldepth = (int) number(text, next, nextEnd);
+            else if (token(text, i, end, "multipv")) multipv = (int) number(text, next, nextEnd);
+            else if (token(text, i, end, "nodes")) nodes = number(text, next, nextEnd);
+            else if (token(text, i, end, "nps")) nps = number(text, next, nextEnd);
+            else if (token(text, i, end, "time")) time = (int) number(text, next, nextEnd);
+            else if (token(text, i, end, "hashfull")) hashfull = (int) number(text, next, nextEnd);
+            else if (token(text, i, end, "cp") || token(text, i, end, "mate")) {
+                hasScore = true; mate = text.charAt(i) == 'm';
+                score = (int) number(text, next, nextEnd);
+            }
+            else if (token(text, i, end, "lowerbound")) {
+                lowerbound = true; i = next; continue;
+            }
+            else if (token(text, i, end, "upperbound")) {
+                upperbound = true; i = next; continue;
+            }
+            else if (token(text, i, end, "score")) {
+                i = next; continue; //cp/mate follows
+            }
+            else if (token(text, i, end, "pv")) {
+                source = text; pvStart = next; pvEnd = trimEnd(text, next, to); return true;
+            }
+            else if (token(text, i, end, "string") || token(text, i, end, "refutation") ||
+                    token(text, i, end, "currline")) {
+                return true; //free text up to the end of the line
+            }
+            else if (token(text, i, end, "wdl")) {
+                next = skipSpaces(text, tokenEnd(text, skipSpaces(text, nextEnd, to), to), to);
+                nextEnd = tokenEnd(text, next, to);
+            }
+            i = skipSpaces(text, nextEnd, to); //every other field takes one value
+        }
+        return true;
+    }
+
+    /**
+     * @return whether this line reported a variation
+     */
+    public boolean hasPv() {
+        return pvStart >= 0 && pvStart < pvEnd;
+    }
+
+    /**
+     * @return the number of moves in the pv
+     */
+    public int pvLength() {
+        int n = 0;
+        for (int i = pvStart; hasPv() && i < pvEnd; i = skipSpaces(source, tokenEnd(source, i, pvEnd), pvEnd)) n++;
+        return n;
+    }
+
+    /**
+     * @param index position in the pv (0 for the move to play)
+     * @return the move in UCI notation, or null if the pv is shorter
+     */
+    public String pvMove(int index) {
+        if (!hasPv()) return null;
+        int i = pvStart;
+        for (int n = 0; n < index && i < pvEnd; n++) i = skipSpaces(source, tokenEnd(source, i, pvEnd), pvEnd);
+        return i < pvEnd ? source.substring(i, tokenEnd(source, i, pvEnd)) : null;
+    }
+
+    /**
+     * @return the pv as a space separated string
+     */
+    public String pv() {
+        return hasPv() ? source.substring(pvStart, pvEnd) : "";
+    }
+
+    /**
+     * @return the score in centipawns from the engine's point of view (mates map to +/-100000)
+     */
+    public int centipawns() {
+        if (!mate) return score;
+        return score > 0 ? 100000 - score : -100000 - score;
+    }
+
+    static int skipSpaces(String text, int i, int to) {
+        while (i < to && text.charAt(i) <= ' ') i++;
+        return i;
+    }
+
+    static int tokenEnd(String text, int i, int to) {
+        while (i < to && text.charAt(i) > ' ') i++;
+        return i;
+    }
+
+    private static int trimEnd(String text, int from, int to) {
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        return to;
+    }
+
+    static boolean token(String text, int from, int to, String word) {
+        return to - from == word.length() && text.startsWith(word, from);
+    }
+
+    /**
+     * @return the (possibly negative) integer at text[from, to), ignoring anything after its digits
+     */
+    static long number(String text, int from, int to) {
+        boolean negative = from < to && text.charAt(from) == '-';
+        long n = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') break;
+            n = n * 10 + (c - '0');
+        }
+        return negative ? -n : n;
+    }
+}
@@ -0,0 +1,324 @@
+package org.chernovia.lib.chess;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.Side;
+import com.github.bhlangonijr.chesslib.move.Move;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A small in-process engine (alpha-beta over chesslib's move generator, material and piece-square eval)
+ * for weak AI seats and servers without Stockfish. Strength is limited by search depth and by noise
+ * added to the root move scores, both scaled from the requested Elo.
+ * Searches run on the calling thread and report in the same UCI text format as Stockfish.
+ */
+public class JavaEngine implements ChessEngine {
+
+    public static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    static final int INF = 1000000, MATE = 100000, MAX_QUIESCE = 6, FULL_STRENGTH = 3000;
+    static final int[] VALUES = {100, 320, 330, 500, 900, 0};
+    static final Piece[] PIECES = {
+            Piece.WHITE_PAWN, Piece.WHITE_KNIGHT, Piece.WHITE_BISHOP, Piece.WHITE_ROOK, Piece.WHITE_QUEEN, Piece.WHITE_KING,
+            Piece.BLACK_PAWN, Piece.BLACK_KNIGHT, Piece.BLACK_BISHOP, Piece.BLACK_ROOK, Piece.BLACK_QUEEN, Piece.BLACK_KING
+    };
+    //piece-square tables from white's point of view, a1 = 0
+    static final int[][] PST = {
+            { 0,  0,  0,  0,  0,  0,  0,  0,   5, 10, 10,-20,-20, 10, 10,  5,   5, -5,-10,  0,  0,-10, -5,  5,
+              0,  0,  0, 20, 20,  0,  0,  0,   5,  5, 10, 25, 25, 10,  5,  5,  10, 10, 20, 30, 30, 20, 10, 10,
+             50, 50, 50, 50, 50, 50, 50, 50,   0,  0,  0,  0,  0,  0,  0,  0},
+            {-50,-40,-30,-30,-30,-30,-40,-50, -40,-20,  0,  5,  5,  0,-20,-40, -30,  5, 10, 15, 15, 10,  5,-30,
+             -30,  0, 15, 20, 20, 15,  0,-30, -30,  5, 15, 20, 20, 15,  5,-30, -30,  0, 10, 15, 15, 10,  0,-30,
+             -40,-20,  0,  0,  0,  0,-20,-40, -50,-40,-30,-30,-30,-30,-40,-50},
+            {-20,-10,-10,-10,-10,-10,-10,-20, -10,  5,  0,  0,  0,  0,  5,-10, -10, 10, 10, 10, 10, 10, 10,-10,
+             -10,  0, 10, 10, 10, 10,  0,-10, -10,  5,  5, 10, 10,  5,  5,-10, -10,  0,  5, 10, 10,  5,  0,-10,
+             -10,  0,  0,  0,  0,  0,  0,-10, -20,-10,-10,-10,-10,-10,-10,-20},
+            { 0,  0,  0,  5,  5,  0,  0,  0,  -5,  0,  0,  0,  0,  0,  0, -5,  -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,  -5,  0,  0,  0,  0,  0,  0, -5,  -5,  0,  0,  0,  0,  0,  0, -5,
+              5, 10, 10, 10, 10, 10, 10,  5,   0,  0,  0,  0,  0,  0,  0,  0},
+            {-20,-10,-10, -5, -5,-10,-10,-20, -10,  0,  5,  0,  0,  0,  0,-10, -10,  5,  5,  5,  5,  5,  0,-10,
+               0,  0,  5,  5,  5,  5,  0, -5,  -5,  0,  5,  5,  5,  5,  0, -5, -10,  0,  5,  5,  5,  5,  0,-10,
+             -10,  0,  0,  0,  0,  0,  0,-10, -20,-10,-10, -5, -5,-10,-10,-20},
+            { 20, 30, 10,  0,  0, 10, 30, 20,  20, 20,  0,  0,  0,  0, 20, 20, -10,-20,-20,-20,-20,-20,-20,-10,
+             -20,-30,-30,-40,-40,-30,-30,-20, -30,-40,-40,-50,-50,-40,-40,-30, -30,-40,-40,-50,-50,-40,-40,-30,
+             -30,-40,-40,-50,-50,-40,-40,-30, -30,-40,-40,-50,-50,-40,-40,-30}
+    };
+    private static final AtomicInteger IDS = new AtomicInteger(0);
+
+    private final String id = "java-" + IDS.incrementAndGet();
+    private final Random random = new Random();
+    private volatile boolean alive = false, stopped = false;
+    private boolean prepared = false; //stopped was reset when the search was handed over
+    private int elo = FULL_STRENGTH;
+    private Board board;
+    private long nodes, stopTime;
+    private boolean finishing; //depth 1 runs to the end whatever stopped it, so there's always a move to report
+
+    @Override
+    public boolean startEngine(String path) {
+        alive = true;
+        return true;
+    }
+
+    @Override
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * @return search depth for the given strength (1 ply at 800 Elo, up to 6)
+     */
+    public static int maxDepth(int elo) {
+        return Math.max(1, Math.min(6, 1 + (elo - 800) / 300));
+    }
+
+    /**
+     * @return standard deviation (centipawns) of the noise added to root moves at the given strength
+     */
+    public static int noise(int elo) {
+        return Math.max(0, 2400 - elo) / 10;
+    }
+
+    @Override
+    public CompletableFuture<String> searchPosition(String position, int waitTime, int multiPv, String searchMoves,
+                                                    Consumer<String> progress) {
+        if (!alive) return CompletableFuture.failedFuture(new IllegalStateException("Engine not running: " + id));
+        try {
+            board = parsePosition(position);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Bad position: " + position));
+        }
+        synchronized (this) {
+            if (!prepared) stopped = false; //called directly: nothing can have stopped it yet
+            prepared = false;
+        }
+        return CompletableFuture.completedFuture(search(waitTime, Math.max(1, multiPv), searchMoves, progress));
+    }
+
+    static Board parsePosition(String position) {
+        Board board = new Board();
+        int movesAt = position.indexOf(" moves ");
+        String base = movesAt < 0 ? position : position.substring(0, movesAt);
+        board.loadFromFen(base.startsWith("fen ") ? base.substring(4).trim() : START_FEN);
+        if (movesAt >= 0) {
+            for (String move : position.substring(movesAt + 7).trim().split(" +")) {
+                if (!board.doMove(new Move(move, board.getSideToMove()), true)) {
+                    throw new IllegalArgumentException("Illegal move: " + move);
+                }
+            }
+        }
+        return board;
+    }
+
+    /**
+     * Iterative deepening over the root moves, keeping exact scores for the best multiPv of them.
+     * The rest only get an upper bound when they fail low, and are ranked below every exact score.
+     */
+    private String search(int waitTime, int multiPv, String searchMoves, Consumer<String> progress) {
+        long start = System.currentTimeMillis();
+        stopTime = start + waitTime; nodes = 0;
+        StringBuilder output = new StringBuilder();
+        List<Move> moves = board.legalMoves();
+        if (searchMoves != null) {
+            List<String> wanted = Arrays.asList(searchMoves.trim().split(" +"));
+            moves.removeIf(move -> !wanted.contains(uci(move)));
+        }
+        if (moves.isEmpty()) {
+            output.append("info depth 0 score ").append(board.isKingAttacked() ? "mate 0" : "cp 0").append("\n");
+            return output.append("bestmove (none)\n").toString();
+        }
+        int n = moves.size(), lines = Math.min(multiPv, n), sigma = noise(elo);
+        Move[] order = moves.toArray(new Move[0]);
+        int[] scores = new int[n], noise = new int[n], iteration = new int[n];
+        for (int i = 0; i < n; i++) noise[i] = (int) (random.nextGaussian() * sigma);
+        orderMoves(order, scores);
+        for (int depth = 1; depth <= maxDepth(elo); depth++) {
+            boolean complete = true;
+            finishing = depth == 1;
+            for (int i = 0; i < n; i++) {
+                int floor = i < lines ? -INF : kthBest(iteration, i, lines) - 1; //moves below the k-th best only need a bound
+                board.doMove(order[i]);
+                iteration[i] = -alphaBeta(depth - 1, -INF, -floor, 1);
+                board.undoMove();
+                if (i >= lines && iteration[i] <= floor) iteration[i] -= INF; //failed low: at most floor, never a line
+                if (stopped && !finishing) {
+                    complete = false; break;
+                }
+            }
+            if (!complete) break;
+            for (int i = 0; i < n; i++) scores[i] = iteration[i] + (Math.abs(iteration[i]) < MATE - 1000 ? noise[i] : 0); //bounds aren't noised
+            sortByScore(order, scores, noise);
+            long time = System.currentTimeMillis() - start;
+            for (int k = 0; k < lines; k++) {
+                String info = "info depth " + depth + " multipv " + (k + 1) + " score " + scoreString(scores[k]) +
+                        " nodes " + nodes + " time " + time + " pv " + uci(order[k]);
+                output.append(info).append("\n");
+                if (progress != null) progress.accept(info);
+            }
+            if (stopped) break;
+        }
+        return output.append("bestmove ").append(uci(order[0])).append("\n").toString();
+    }
+
+    private static int kthBest(int[] scores, int count, int k) {
+        int[] best = new int[k];
+        Arrays.fill(best, -INF);
+        for (int i = 0; i < count; i++) {
+            int s = scores[i];
+            for (int j = 0; j < k; j++) if (s > best[j]) {
+                System.arraycopy(best, j, best, j + 1, k - j - 1); best[j] = s; break;
+            }
+        }
+        return best[k - 1];
+    }
+
+    private int alphaBeta(int depth, int alpha, int beta, int ply) {
+        if ((++nodes & 1023) == 0 && System.currentTimeMillis() > stopTime) stopped = true;
+        if (stopped && !finishing) return 0;
+        if (board.getHalfMoveCounter() >= 100 || board.isRepetition(2)) return 0;
+        if (depth <= 0) return quiesce(alpha, beta, 0);
+        List<Move> moves = board.legalMoves();
+        if (moves.isEmpty()) return board.isKingAttacked() ? -MATE + ply : 0;
+        Move[] order = moves.toArray(new Move[0]);
+        orderMoves(order, new int[order.length]);
+        for (Move move : order) {
+            board.doMove(move);
+            int score = -alphaBeta(depth - 1, -beta, -alpha, ply + 1);
+            board.undoMove();
+            if (stopped && !finishing) return 0;
+            if (score >= beta) return beta;
+            if (score > alpha) alpha = score;
+        }
+        return alpha;
+    }
+
+    private int quiesce(int alpha, int beta, int qDepth) {
+        int standPat = evaluate();
+        if (standPat >= beta) return beta;
+        if (standPat > alpha) alpha = standPat;
+        if (qDepth >= MAX_QUIESCE) return alpha;
+        for (Move move : board.legalMoves()) {
+            if (board.getPiece(move.getTo()) == Piece.NONE && move.getPromotion() == Piece.NONE) continue;
+            board.doMove(move);
+            nodes++;
+            int score = -quiesce(-beta, -alpha, qDepth + 1);
+            board.undoMove();
+            if (score >= beta) return beta;
+            if (score > alpha) alpha = score;
+        }
+        return alpha;
+    }
+
+    /**
+     * @return material and piece-square score in centipawns for the side to move
+     */
+    int evaluate() {
+        int score = 0;
+        for (int p = 0; p < PIECES.length; p++) {
+            int type = p % 6;
+            boolean white = p < 6;
+            for (long bb = board.getBitboard(PIECES[p]); bb != 0; bb &= bb - 1) {
+                int sq = Long.numberOfTrailingZeros(bb);
+                int value = VALUES[type] + PST[type][white ? sq : sq ^ 56];
+                score += white ? value : -value;
+            }
+        }
+        return board.getSideToMove() == Side.WHITE ? score : -score;
+    }
+
+    /**
+     * Sorts captures and promotions first, most valuable victim and least valuable attacker first
+     */
+    private void orderMoves(Move[] moves, int[] scores) {
+        for (int i = 0; i < moves.length; i++) {
+            Piece victim = board.getPiece(moves[i].getTo());
+            int s = moves[i].getPromotion() != Piece.NONE ? 2000 : 0;
+            if (victim != Piece.NONE) {
+                s += 10 * VALUES[victim.getPieceType().ordinal()] -
+                        VALUES[Math.min(4, board.getPiece(moves[i].getFrom()).getPieceType().ordinal())] / 10;
+            }
+            scores[i] = s;
+        }
+        sortByScore(moves, scores, null);
+    }
+
+    /**
+     * Insertion sort, best score first (the lists are short)
+     */
+    private static void sortByScore(Move[] moves, int[] scores, int[] tags) {
+        for (int i = 1; i < moves.length; i++) {
+            Move move = moves[i]; int score = scores[i], tag = tags != null ? tags[i] : 0, j = i - 1;
+            for (; j >= 0 && scores[j] < score; j--) {
+                moves[j + 1] = moves[j]; scores[j + 1] = scores[j];
+                if (tags != null) tags[j + 1] = tags[j];
+            }
+            moves[j + 1] = move; scores[j + 1] = score;
+            if (tags != null) tags[j + 1] = tag;
+        }
+    }
+
+    private static String scoreString(int score) {
+        if (score > MATE - 1000) return "mate " + (MATE - score + 1) / 2;
+        if (score < -MATE + 1000) return "mate -" + (MATE + score) / 2;
+        return "cp " + score;
+    }
+
+    static String uci(Move move) {
+        return move.toString().toLowerCase();
+    }
+
+    @Override
+    public synchronized void prepareSearch() {
+        stopped = false; prepared = true;
+    }
+
+    @Override
+    public void stopSearch() {
+        stopped = true;
+    }
+
+    @Override
+    public boolean abortSearch() {
+        stopped = true;
+        return alive;
+    }
+
+    @Override
+    public boolean probe(long timeout) {
+        return alive;
+    }
+
+    @Override
+    public void setOptions(int threads, int hashSize) {
+    }
+
+    @Override
+    public void setElo(int elo) {
+        this.elo = elo <= 0 ? FULL_STRENGTH : elo;
+    }
+
+    @Override
+    public boolean newGame() {
+        return alive;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return alive;
+    }
+
+    @Override
+    public void kill() {
+        stopEngine();
+    }
+
+    @Override
+    public void stopEngine() {
+        stopped = true; alive = false;
+    }
+}
@@ -0,0 +1,230 @@
+package org.chernovia.lib.chess;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Polyglot (.bin) opening book, memory mapped and searched in place: entries are 16 bytes
+ * (key, move, weight, learn) sorted by key, so a lookup is a binary search over the file.
+ * The 781 Random64 hashing constants of the Polyglot format come from the polyglot_random64.txt resource
+ * or a separate file (any text containing them as 16 digit hex numbers, e.g. the C table from the
+ * format's documentation).
+ */
+public class PolyglotBook {
+
+    public static final int KEYS = 781, ENTRY_SIZE = 16;
+    private static final int CASTLE_OFFSET = 768, EP_OFFSET = 772, TURN_OFFSET = 780;
+    private static final Pattern HEX_KEY = Pattern.compile("(?:0[xX])?([0-9a-fA-F]{16})");
+    private static final String PIECES = "pPnNbBrRqQkK"; //Polyglot piece order
+    private static final String PROMOTIONS = " nbrq";
+    static final String KEYS_RESOURCE = "/polyglot_random64.txt";
+    static final long[] RANDOM64 = bundledKeys(); //null if the resource is missing
+
+    private final ByteBuffer entries;
+    private final long[] random64;
+    private final int size;
+    private final AtomicLong lookups = new AtomicLong(0), hits = new AtomicLong(0);
+
+    public static class Entry {
+        public final String move;
+        public final int weight;
+
+        Entry(String move, int weight) {
+            this.move = move; this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            return move + "(" + weight + ")";
+        }
+    }
+
+    /**
+     * @param bookPath Polyglot .bin file, hashed with the bundled Random64 table
+     */
+    public PolyglotBook(String bookPath) throws IOException {
+        this(bookPath, bundled());
+    }
+
+    /**
+     * @param bookPath Polyglot .bin file
+     * @param keysPath file listing the Random64 constants
+     */
+    public PolyglotBook(String bookPath, String keysPath) throws IOException {
+        this(bookPath, loadKeys(Path.of(keysPath)));
+    }
+
+    private PolyglotBook(String bookPath, long[] random64) throws IOException {
+        this.random64 = random64;
+        try (FileChannel channel = FileChannel.open(Path.of(bookPath), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length % ENTRY_SIZE != 0 || length / ENTRY_SIZE > Integer.MAX_VALUE / ENTRY_SIZE) {
+                throw new IOException("Not a Polyglot book: " + bookPath);
+            }
+            entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, length); //stays valid after close
+            size = (int) (length / ENTRY_SIZE);
+        }
+    }
+
+    static long[] loadKeys(Path path) throws IOException {
+        return parseKeys(Files.readString(path), path.toString());
+    }
+
+    private static long[] bundledKeys() {
+        try (InputStream stream = PolyglotBook.class.getResourceAsStream(KEYS_RESOURCE)) {
+            return stream == null ? null : parseKeys(new String(stream.readAllBytes(), StandardCharsets.UTF_8), KEYS_RESOURCE);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long[] bundled() throws IOException {
+        if (RANDOM64 == null) throw new IOException("No Polyglot keys: " + KEYS_RESOURCE + " isn't bundled");
+        return RANDOM64;
+    }
+
+    private static long[] parseKeys(String text, String source) throws IOException {
+        long[] keys = new long[KEYS];
+        Matcher matcher = HEX_KEY.matcher(text);
+        int n = 0;
+        while (n < KEYS && matcher.find()) keys[n++] = Long.parseUnsignedLong(matcher.group(1), 16);
+        if (n < KEYS) throw new IOException("Expected " + KEYS + " Polyglot keys, found " + n + " in " + source);
+        return keys;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the Polyglot hash of a position
+     */
+    public long key(String fen) {
+        String[] fields = fen.trim().split("\\s+");
+        long key = 0;
+        int rank = 7, file = 0;
+        char[][] board = new char[8][8];
+        for (char c : fields[0].toCharArray()) {
+            if (c == '/') { rank--; file = 0; }
+            else if (c >= '1' && c <= '8') file += c - '0';
+            else if (rank >= 0 && file < 8) {
+                int piece = PIECES.indexOf(c);
+                if (piece >= 0) key ^= random64[64 * piece + 8 * rank + file];
+                board[rank][file++] = c;
+            }
+        }
+        boolean white = fields.length < 2 || fields[1].equals("w");
+        String castling = fields.length > 2 ? fields[2] : "-";
+        if (castling.indexOf('K') >= 0) key ^= random64[CASTLE_OFFSET];
+        if (castling.indexOf('Q') >= 0) key ^= random64[CASTLE_OFFSET + 1];
+        if (castling.indexOf('k') >= 0) key ^= random64[CASTLE_OFFSET + 2];
+        if (castling.indexOf('q') >= 0) key ^= random64[CASTLE_OFFSET + 3];
+        if (fields.length > 3 && fields[3].length() == 2) { //only hashed if a pawn can actually take en passant
+            int epFile = fields[3].charAt(0) - 'a', pawnRank = white ? 4 : 3;
+            char pawn = white ? 'P' : 'p';
+            if ((epFile > 0 && board[pawnRank][epFile - 1] == pawn) || (epFile < 7 && board[pawnRank][epFile + 1] == pawn)) {
+                key ^= random64[EP_OFFSET + epFile];
+            }
+        }
+        if (white) key ^= random64[TURN_OFFSET];
+        return key;
+    }
+
+    /**
+     * @return the book moves (in UCI notation) for a position, or an empty list if it's out of book
+     */
+    public List<Entry> lookup(String fen) {
+        lookups.incrementAndGet();
+        long key = key(fen);
+        int lo = 0, hi = size;
+        while (lo < hi) { //first entry with this key
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(entries.getLong(mid * ENTRY_SIZE), key) < 0) lo = mid + 1; else hi = mid;
+        }
+        List<Entry> moves = new ArrayList<>();
+        for (int i = lo; i < size && entries.getLong(i * ENTRY_SIZE) == key; i++) {
+            int weight = entries.getShort(i * ENTRY_SIZE + 10) & 0xFFFF;
+            if (weight > 0) moves.add(new Entry(decodeMove(entries.getShort(i * ENTRY_SIZE + 8) & 0xFFFF, fen), weight));
+        }
+        if (!moves.isEmpty()) hits.incrementAndGet();
+        return moves;
+    }
+
+    /**
+     * Picks a weighted random book move. Stronger players follow the book's weights more closely,
+     * weaker ones spread their choices over the rarer lines.
+     *
+     * @param elo strength of the player
+     * @return a move in UCI notation, or null if the position is out of book
+     */
+    public String pick(String fen, int elo) {
+        return pick(lookup(fen), elo);
+    }
+
+    public static String pick(List<Entry> moves, int elo) {
+        if (moves.isEmpty()) return null;
+        double sharpness = Math.max(.25, Math.min(2, elo / 1500.0)), total = 0;
+        double[] weights = new double[moves.size()];
+        for (int i = 0; i < weights.length; i++) total += weights[i] = Math.pow(moves.get(i).weight, sharpness);
+        double r = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) if ((r -= weights[i]) < 0) return moves.get(i).move;
+        return moves.get(moves.size() - 1).move;
+    }
+
+    /**
+     * Polyglot packs a move as to (bits 0-5), from (6-11) and promotion (12-14),
+     * and writes castling as the king taking its own rook
+     */
+    static String decodeMove(int move, String fen) {
+        int to = move & 63, from = (move >> 6) & 63, promotion = (move >> 12) & 7;
+        String uci = square(from) + square(to);
+        if (Character.toUpperCase(pieceAt(fen, from)) == 'K') switch (uci) {
+            case "e1h1": return "e1g1";
+            case "e1a1": return "e1c1";
+            case "e8h8": return "e8g8";
+            case "e8a8": return "e8c8";
+        }
+        return promotion > 0 && promotion < PROMOTIONS.length() ? uci + PROMOTIONS.charAt(promotion) : uci;
+    }
+
+    /**
+     * @return the piece letter on a square (0-63, a1 first) of the FEN's placement field, or ' '
+     */
+    static char pieceAt(String fen, int square) {
+        int rank = 7, file = 0;
+        for (int i = 0; i < fen.length() && fen.charAt(i) != ' '; i++) {
+            char c = fen.charAt(i);
+            if (c == '/') { rank--; file = 0; }
+            else if (c >= '1' && c <= '8') file += c - '0';
+            else if (rank * 8 + file++ == square) return c;
+        }
+        return ' ';
+    }
+
+    private static String square(int index) {
+        return "" + (char) ('a' + (index & 7)) + (char) ('1' + (index >> 3));
+    }
+
+    public ObjectNode toJSON() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("entries", size);
+        node.put("lookups", lookups.get());
+        node.put("hits", hits.get());
+        return node;
+    }
+}
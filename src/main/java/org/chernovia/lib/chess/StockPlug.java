@@ -6,18 +6,53 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * A simple and efficient client to run Stockfish from Java
  *
  * @author Rahul A R (with recent additions by John Chernoff)
  */
-public class StockPlug {
+public class StockPlug implements ChessEngine {
+
+    /**
+     * Grace period (ms) for the engine to answer beyond any requested search time
+     */
+    public static final long READY_TIMEOUT = 5000;
+
+    /**
+     * Output collected for one request, completed by the reader thread when a line starting with
+     * the key string arrives
+     */
+    private static class Pending {
+        final String keyString;
+        final Consumer<String> progress; //sees info lines as they arrive
+        final StringBuilder buffer = new StringBuilder();
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Pending(String key, Consumer<String> progress) {
+            keyString = key;
+            this.progress = progress;
+        }
+    }
 
     private Process engineProcess;
     private BufferedReader processReader;
     private OutputStreamWriter processWriter;
+    private Thread readerThread;
+    private final Object lock = new Object();
+    private Pending pending; //guarded by lock
+    private final HashMap<String, Integer> owed = new HashMap<>(); //replies still due to abandoned requests, by key string
     private String id = "?";
+    private volatile boolean killed = false;
 
     /**
      * Starts Stockfish engine as a process and initializes it
@@ -34,9 +69,73 @@ public class StockPlug {
             return false;
         }
         id = engineProcess.pid() + "";  //System.out.println("New Process: " + id);
+        readerThread = new Thread(this::readOutput, "StockPlug-" + id);
+        readerThread.setDaemon(true);
+        readerThread.start();
         return true;
     }
 
+    /**
+     * Reader loop: hands each line to the pending request (if any) as soon as it arrives.
+     * Replies still owed to abandoned requests (and the info lines of an abandoned search) are skipped,
+     * so they can't complete the next request instead.
+     */
+    private void readOutput() {
+        try {
+            String text;
+            while ((text = processReader.readLine()) != null) { //System.out.println(id + ": " + text);
+                Pending p;
+                boolean done = false;
+                synchronized (lock) {
+                    p = stale(text) ? null : pending;
+                    if (p != null) {
+                        p.buffer.append(text).append("\n");
+                        if (text.startsWith(p.keyString)) {
+                            pending = null; done = true;
+                        }
+                    }
+                }
+                if (p == null) continue;
+                if (p.progress != null && text.startsWith("info ")) try {
+                    p.progress.accept(text);
+                } catch (RuntimeException e) {
+                    MoleServ.log("Search listener error (" + id + "): " + e);
+                }
+                if (done) p.result.complete(p.buffer.toString());
+            }
+        } catch (IOException ignored) { //stream closed
+        }
+        Pending p;
+        synchronized (lock) {
+            p = pending; pending = null; owed.clear();
+        }
+        if (p != null) p.result.completeExceptionally(new IOException("Engine output closed: " + id));
+    }
+
+    /**
+     * @return whether the line belongs to an abandoned request (counting it off if it's the reply)
+     */
+    private boolean stale(String text) {
+        if (owed.isEmpty()) return false;
+        if (text.startsWith("info ")) return owed.containsKey("bestmove"); //the engine only runs one search
+        for (String key : owed.keySet()) {
+            if (text.startsWith(key)) {
+                owed.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops waiting for a request's reply, remembering that it's still owed (must hold lock)
+     */
+    private void abandon(Pending p) {
+        if (pending != p) return; //already answered
+        pending = null;
+        owed.merge(p.keyString, 1, Integer::sum);
+    }
+
     public String getID() {
         return id;
     }
@@ -55,34 +154,95 @@ public class StockPlug {
         }
     }
 
+    public void stopSearch() {
+        sendCommand("stop");
+    }
+
     /**
-     * This is generally called right after 'sendCommand' for getting the raw
-     * output from Stockfish
+     * Sends the given commands and returns a future completed with the engine's output
+     * up to (and including) the first line starting with the key string
      *
-     * @param waitTime Time in milliseconds for which the function waits before
-     *                 reading the output. Useful when a long running command is
-     *                 executed
+     * @param keyString line prefix that ends the response (e.g. "bestmove", "readyok")
+     * @param commands  UCI commands to send once the response is being listened for
      * @return Raw output from Stockfish
      */
-    public String getOutput(int waitTime) {
-        return getOutput("readyok", waitTime);
+    public CompletableFuture<String> send(String keyString, String... commands) {
+        return send(keyString, null, commands);
     }
 
-    public String getOutput(String keyString, int waitTime) {
-        StringBuffer buffer = new StringBuffer();
-        try { //System.out.println("Sleeping: " + waitTime);
-            Thread.sleep(waitTime);
-            sendCommand("isready");
-            while (true) {
-                String text = processReader.readLine(); //System.out.println(id + ": " + text);
-                buffer.append(text + "\n");
-                if (text.startsWith(keyString)) break;
+    /**
+     * @param progress called with each info line of the response as it arrives (may be null)
+     */
+    public CompletableFuture<String> send(String keyString, Consumer<String> progress, String... commands) {
+        return request(keyString, progress, commands).result;
+    }
 
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    private Pending request(String keyString, Consumer<String> progress, String... commands) {
+        Pending p = new Pending(keyString, progress), previous;
+        synchronized (lock) {
+            previous = pending;
+            if (previous != null) abandon(previous);
+            pending = p;
         }
-        return buffer.toString();
+        if (previous != null) previous.result.cancel(false);
+        for (String command : commands) sendCommand(command);
+        return p;
+    }
+
+    /**
+     * Blocking form of {@link #send}
+     *
+     * @param timeout Maximum time in milliseconds to wait for the key string
+     * @return Raw output from Stockfish, or an empty string on timeout/error
+     */
+    public String getOutput(String keyString, long timeout, String... commands) {
+        Pending p = request(keyString, null, commands);
+        try {
+            return p.result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            MoleServ.log("Stockfish timeout (" + id + "): waiting for " + keyString);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            MoleServ.log("Stockfish error (" + id + "): " + e.getCause().getMessage());
+        }
+        synchronized (lock) {
+            abandon(p);
+        }
+        return "";
+    }
+
+    /**
+     * Waits for the engine to acknowledge all previously sent commands
+     *
+     * @param commands commands to send first
+     * @return Raw output from Stockfish (ending with readyok)
+     */
+    public String getReady(String... commands) {
+        String[] cmds = new String[commands.length + 1];
+        System.arraycopy(commands, 0, cmds, 0, commands.length);
+        cmds[commands.length] = "isready";
+        return getOutput("readyok", READY_TIMEOUT, cmds);
+    }
+
+    /**
+     * Stops any running search and discards its output, so a late bestmove can't be
+     * mistaken for the answer to the next request
+     *
+     * @return false if the engine didn't respond
+     */
+    public boolean abortSearch() {
+        return !getReady("stop").isEmpty();
+    }
+
+    /**
+     * Checks the engine still answers
+     *
+     * @param timeout maximum time in milliseconds to wait for readyok
+     * @return True if the engine is alive and responded in time
+     */
+    public boolean probe(long timeout) {
+        return isAlive() && !getOutput("readyok", timeout, "isready").isEmpty();
     }
 
     /**
@@ -94,18 +254,161 @@ public class StockPlug {
      * @return Best Move in PGN format
      */
     public String getBestMove(String fen, int waitTime) {
-        sendCommand("position fen " + fen);
-        sendCommand("go movetime " + waitTime);
-        String output = getOutput("bestmove", waitTime + 20);
-        return output.split("bestmove ")[1].split(" ")[0];
+        return parseBestMove(search(fen, waitTime));
+    }
+
+    /**
+     * Starts a search without waiting for it
+     *
+     * @param fen      Position string
+     * @param waitTime in milliseconds
+     * @return a future completed with the raw search output (ending with bestmove)
+     */
+    public CompletableFuture<String> startSearch(String fen, int waitTime) {
+        return startSearch(fen, waitTime, 1);
+    }
+
+    /**
+     * @param multiPv number of principal variations to report
+     */
+    public CompletableFuture<String> startSearch(String fen, int waitTime, int multiPv) {
+        return searchPosition("fen " + fen, waitTime, multiPv);
+    }
+
+    /**
+     * @param position arguments to the UCI position command (e.g. "startpos moves e2e4")
+     */
+    public CompletableFuture<String> searchPosition(String position, int waitTime, int multiPv) {
+        return searchPosition(position, waitTime, multiPv, null, null);
+    }
+
+    /**
+     * @param searchMoves space separated UCI moves to restrict the search to (null for all)
+     * @param progress    called with each info line as it arrives (may be null)
+     */
+    public CompletableFuture<String> searchPosition(String position, int waitTime, int multiPv, String searchMoves,
+                                                    Consumer<String> progress) {
+        return send("bestmove", progress, "setoption name MultiPV value " + multiPv, "position " + position,
+                "go movetime " + waitTime + (searchMoves != null ? " searchmoves " + searchMoves : ""));
+    }
+
+    /**
+     * @return whether the FEN is the standard starting position
+     */
+    public static boolean isStartPosition(String fen) {
+        return fen.startsWith("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - ");
+    }
+
+    private String search(String fen, int waitTime) {
+        String output = getOutput("bestmove", waitTime + READY_TIMEOUT,
+                "position fen " + fen, "go movetime " + waitTime);
+        if (output.isEmpty()) abortSearch();
+        return output;
+    }
+
+    /**
+     * @param output Raw search output
+     * @return the bestmove in UCI notation, or null if there isn't one
+     */
+    public static String parseBestMove(String output) {
+        BestMove best = parseBest(output);
+        return best != null ? best.move : null;
+    }
+
+    /**
+     * @param output Raw search output
+     * @return the bestmove line, or null if there isn't one
+     */
+    public static BestMove parseBest(String output) {
+        for (int end = output.length(); end > 0; ) {
+            int start = output.lastIndexOf('\n', end - 1) + 1;
+            if (output.startsWith("bestmove", start)) return BestMove.parse(output, start, end);
+            end = start - 1;
+        }
+        return null;
+    }
+
+    /**
+     * @param output Raw search output
+     * @return the latest variation reported for each MultiPV index, best first
+     * (lines with a lowerbound or upperbound score are skipped: a fail high or low isn't the line's score)
+     */
+    public static List<EngineResult.Line> parseLines(String output) {
+        TreeMap<Integer, EngineResult.Line> lines = new TreeMap<>();
+        InfoRecord info = new InfoRecord();
+        for (int end = output.length(); end > 0; ) { //newest first: stop once a complete iteration is seen
+            int start = output.lastIndexOf('\n', end - 1) + 1;
+            if (info.parse(output, start, end) && info.hasScore && !info.lowerbound && !info.upperbound && info.hasPv()) {
+                if (!lines.containsKey(info.multipv)) {
+                    lines.put(info.multipv, new EngineResult.Line(info.pvMove(0), info.score, info.mate));
+                }
+                else if (lines.lastKey() == lines.size()) break;
+            }
+            end = start - 1;
+        }
+        return new ArrayList<>(lines.values());
+    }
+
+    /**
+     * @param output Raw search output
+     * @return the last info line reporting a depth (empty if there isn't one)
+     */
+    public static InfoRecord parseLastInfo(String output) {
+        InfoRecord info = new InfoRecord();
+        for (int end = output.length(); end > 0; ) {
+            int start = output.lastIndexOf('\n', end - 1) + 1;
+            if (info.parse(output, start, end) && info.depth > 0) return info;
+            end = start - 1;
+        }
+        info.parse("", 0, 0);
+        return info;
     }
 
     public void setOptions(int threads, int hashsize, int elo) {
         sendCommand("setoption name Threads value " + threads);
         sendCommand("setoption name Hash value " + hashsize);
-        sendCommand("setoption name UCI_LimitStrength value true");
-        sendCommand("setoption name UCI_Elo value " + elo);
-        getOutput(100);
+        setElo(elo);
+    }
+
+    public void setOptions(int threads, int hashsize) {
+        getReady("setoption name Threads value " + threads, "setoption name Hash value " + hashsize);
+    }
+
+    /**
+     * Limits playing strength (cheap enough to change between searches)
+     *
+     * @param elo UCI_Elo value (0 or less for full strength)
+     */
+    public void setElo(int elo) {
+        if (elo <= 0) getReady("setoption name UCI_LimitStrength value false");
+        else getReady("setoption name UCI_LimitStrength value true", "setoption name UCI_Elo value " + elo);
+    }
+
+    /**
+     * Clears the hash and search history so the next search starts fresh
+     *
+     * @return false if the engine didn't respond
+     */
+    public boolean newGame() {
+        return !getReady("ucinewgame").isEmpty();
+    }
+
+    public boolean isAlive() {
+        return engineProcess != null && !killed && engineProcess.isAlive();
+    }
+
+    /**
+     * Ends an unresponsive engine process
+     */
+    public void kill() {
+        if (engineProcess == null) return;
+        killed = true;
+        engineProcess.destroyForcibly();
+        try {
+            processReader.close();
+            processWriter.close();
+        } catch (IOException ignored) {
+        }
     }
 
     /**
@@ -127,9 +430,11 @@ public class StockPlug {
      * @return String of moves
      */
     public String getLegalMoves(String fen) {
-        sendCommand("position fen " + fen);
-        sendCommand("d");
-        return getOutput(0).split("Legal moves: ")[1];
+        String output = getReady("position fen " + fen, "d");
+        int i = output.indexOf("Legal moves: ");
+        if (i < 0) return "";
+        int end = output.indexOf('\n', i);
+        return output.substring(i + "Legal moves: ".length(), end < 0 ? output.length() : end);
     }
 
     /**
@@ -138,12 +443,9 @@ public class StockPlug {
      * @param fen Position string
      */
     public void drawBoard(String fen) {
-        sendCommand("position fen " + fen);
-        sendCommand("d");
-
-        String[] rows = getOutput(0).split("\n");
+        String[] rows = getReady("position fen " + fen, "d").split("\n");
 
-        for (int i = 1; i < 18; i++) {
+        for (int i = 1; i < 18 && i < rows.length; i++) {
             System.out.println(rows[i]);
         }
     }
@@ -156,26 +458,19 @@ public class StockPlug {
      * @return evalScore
      */
     public float getEvalScore(String fen, int waitTime) {
-        sendCommand("position fen " + fen);
-        sendCommand("go movetime " + waitTime);
-        String[] dump = getOutput(waitTime + 20).split("\n");
-        String eval_str = "";
-        for (int i = dump.length - 1; i >= 0; i--) { //System.out.println(i + " -> " + dump[i]);
-            if (dump[i].startsWith("info depth ")) {
-                if (dump[i].contains("mate")) return 999;
-                if (dump[i].contains("score cp")) {
-                    try {
-                        return Float.parseFloat(dump[i].split("score cp ")[1].split(" nodes")[0]) / 100;
-                    } catch (Exception e) {
-                        try {
-                            return Float.parseFloat(dump[i].split("score cp ")[1].split(" upperbound nodes")[0]) / 100;
-                        } catch (Exception oops) {
-                            System.out.println("Eval error: " + oops.getMessage() + " -> " + dump[i]);
-                            System.out.println(eval_str);
-                        }
-                    }
-                }
-            }
+        return parseEval(search(fen, waitTime));
+    }
+
+    /**
+     * @param output Raw search output
+     * @return the last reported score in pawns (999 for mate; see {@link #parseLastInfo} for the distance)
+     */
+    public static float parseEval(String output) {
+        InfoRecord info = new InfoRecord();
+        for (int end = output.length(); end > 0; ) {
+            int start = output.lastIndexOf('\n', end - 1) + 1;
+            if (info.parse(output, start, end) && info.hasScore) return info.mate ? 999 : info.score / 100f;
+            end = start - 1;
         }
         return 0;
     }
@@ -0,0 +1,126 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.chernovia.lib.chess.EngineResult;
+import org.chernovia.lib.chess.EngineService;
+import org.chernovia.lib.chess.InfoRecord;
+import org.chernovia.lib.zugserv.Connection;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A game's live evaluation for observers: one search per position whatever the size of the audience,
+ * reported at depth milestones and kept for observers who arrive later.
+ * Nothing is searched while nobody is watching.
+ */
+class EvalFeed {
+
+    static final String MSG_EVAL = "eval";
+    static int SEARCH_TIME = 5000; //ms per position
+    static int DEPTH_STEP = 4; //report every this many plies of depth
+    static int MIN_INTERVAL = 500; //ms between reports
+    static long SEARCH_TIMEOUT = 60 * 1000; //deadline for a search waiting behind live play
+
+    private final MoleGame game;
+    private String fen;
+    private ObjectNode latest; //last report for the current position
+    private boolean done = false; //the current position's search finished
+    private CompletableFuture<EngineResult> search;
+    private int nextDepth;
+    private long lastReport;
+
+    EvalFeed(MoleGame game) {
+        this.game = game;
+    }
+
+    /**
+     * Switches the feed to a new position, searching it if anyone is watching
+     */
+    synchronized void setPosition(String newFen) {
+        if (newFen.equals(fen)) return;
+        cancel();
+        fen = newFen; latest = null; done = false;
+        if (game.hasAudience()) start();
+    }
+
+    /**
+     * Pauses the feed when the last observer leaves, and resumes it when one arrives
+     */
+    synchronized void audienceChanged() {
+        if (!game.hasAudience()) cancel();
+        else if (search == null && !done) start();
+    }
+
+    /**
+     * Brings a new observer up to date
+     */
+    synchronized void sendTo(MoleUser user) {
+        if (latest != null) user.tell(MSG_EVAL, latest);
+    }
+
+    /**
+     * Brings a new obs_player connection up to date (not the player it follows)
+     */
+    synchronized void sendTo(Connection conn) {
+        if (latest != null) Outbox.of(conn).offer(MSG_EVAL, latest, game.getTitle());
+    }
+
+    synchronized void stop() {
+        cancel(); fen = null;
+    }
+
+    private void cancel() {
+        CompletableFuture<EngineResult> s = search;
+        search = null;
+        if (s != null) s.cancel(true);
+    }
+
+    private void start() {
+        EngineService service = MoleServ.STOCK_SERVICE;
+        if (fen == null || service == null || !service.isAvailable()) return;
+        String position = fen;
+        nextDepth = DEPTH_STEP; lastReport = 0;
+        CompletableFuture<EngineResult> s = service.watch(position, 0, SEARCH_TIME,
+                System.currentTimeMillis() + SEARCH_TIMEOUT, EngineService.PRIORITY.ANALYSIS, line -> progress(position, line));
+        search = s;
+        s.whenComplete((result, err) -> finished(s, result, err));
+    }
+
+    private synchronized void progress(String position, String line) {
+        if (!position.equals(fen)) return;
+        InfoRecord info = new InfoRecord();
+        if (!info.parse(line, 0, line.length()) || info.multipv != 1 || !info.hasScore) return;
+        if (info.lowerbound || info.upperbound || info.depth < nextDepth) return;
+        long now = System.currentTimeMillis();
+        if (now - lastReport < MIN_INTERVAL) return;
+        report(info.depth, info.score, info.mate, info.pvMove(0), false);
+        nextDepth = info.depth + DEPTH_STEP; lastReport = now;
+    }
+
+    private synchronized void finished(CompletableFuture<EngineResult> s, EngineResult result, Throwable err) {
+        if (s != search) return; //superseded or paused
+        search = null;
+        if (err == null) {
+            done = true;
+            EngineResult.Line best = result.lines.isEmpty() ? null : result.lines.get(0);
+            if (best != null) report(result.depth, best.score, best.mate, result.bestMove, true);
+        }
+        else if (err instanceof CancellationException && game.hasAudience()) start(); //preempted by live play
+    }
+
+    /**
+     * @param score centipawns or moves to mate, from the side to move's point of view
+     */
+    private void report(int depth, int score, boolean mate, String move, boolean last) {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        node.put("fen", fen);
+        node.put("depth", depth);
+        int white = fen.contains(" b ") ? -score : score; //the bar is always from white's side
+        if (mate) node.put("mate", white); else node.put("cp", white);
+        node.put("best", move);
+        node.put("final", last);
+        latest = node;
+        game.spamObservers(MSG_EVAL, node);
+    }
+}
@@ -0,0 +1,92 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.*;
+
+/**
+ * The lobby's list of games, updated incrementally: each update compares every game's summary
+ * (memoized by the game, see {@link MoleGame#lobbyJSON}) with the last one and numbers the changes.
+ * Clients following deltas get just the added, changed and removed games; the rest get the whole list,
+ * encoded once per version (and second, as each entry's time remaining is filled in when it's sent).
+ */
+class LobbyIndex {
+
+    static final String MSG_DELTA = "games_delta";
+
+    private final LinkedHashMap<String, ObjectNode> summaries = new LinkedHashMap<>(); //by title
+    private final HashMap<String, MoleGame> listed = new HashMap<>(); //by title
+    private long version = 0, listSecond;
+    private JsonNode list; //the encoded list for this version and second, built when first needed
+    private long changes = 0, unchanged = 0;
+
+    /**
+     * @return the changes since the last update as {"version", "added", "changed", "removed"}, or null if none
+     */
+    synchronized ObjectNode update(Collection<MoleGame> games) {
+        ObjectNode diff = MoleServ.OBJ_MAPPER.createObjectNode();
+        ArrayNode added = diff.putArray("added"), changed = diff.putArray("changed"), removed = diff.putArray("removed");
+        Set<String> titles = new HashSet<>();
+        for (MoleGame game : games) {
+            titles.add(game.getTitle());
+            ObjectNode summary = game.lobbyJSON();
+            ObjectNode previous = summaries.put(game.getTitle(), summary);
+            listed.put(game.getTitle(), game);
+            if (previous == null) added.add(game.lobbyEntry());
+            else if (previous != summary) changed.add(game.lobbyEntry());
+            else unchanged++;
+        }
+        for (Iterator<String> it = summaries.keySet().iterator(); it.hasNext(); ) {
+            String title = it.next();
+            if (!titles.contains(title)) {
+                it.remove(); listed.remove(title); removed.add(title);
+            }
+        }
+        if (added.isEmpty() && changed.isEmpty() && removed.isEmpty()) return null;
+        changes += added.size() + changed.size() + removed.size();
+        version++; list = null;
+        diff.put("version", version);
+        return diff;
+    }
+
+    /**
+     * @return the whole list as sent before deltas (encoded, so only for sending)
+     */
+    synchronized JsonNode list() {
+        long second = System.currentTimeMillis() / 1000;
+        if (list == null || second != listSecond) {
+            list = MoleServ.encode(entries()); listSecond = second;
+        }
+        return list;
+    }
+
+    private ArrayNode entries() {
+        ArrayNode entries = MoleServ.OBJ_MAPPER.createArrayNode();
+        for (String title : summaries.keySet()) entries.add(listed.get(title).lobbyEntry());
+        return entries;
+    }
+
+    /**
+     * @return the whole list as a delta, for a client that's just started following them or missed one
+     */
+    synchronized ObjectNode reset() {
+        ObjectNode diff = MoleServ.OBJ_MAPPER.createObjectNode();
+        diff.put("version", version);
+        diff.put("reset", true);
+        diff.set("added", entries());
+        diff.putArray("changed");
+        diff.putArray("removed");
+        return diff;
+    }
+
+    synchronized ObjectNode toJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        node.put("version", version);
+        node.put("games", summaries.size());
+        node.put("changes", changes);
+        node.put("unchanged", unchanged);
+        return node;
+    }
+}
@@ -0,0 +1,226 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.chernovia.lib.chess.EngineResult;
+import org.chernovia.lib.chess.EngineService;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Background analysis of finished games: every position's voted moves are scored by one
+ * searchmoves search, giving each player's centipawn loss and how well the moles sabotaged.
+ * Searches run one at a time at analysis priority and only while the engines are otherwise idle.
+ * Each queued game is journaled to disk (with the plies analysed so far), so a restart resumes it.
+ */
+public class MoleAnalyzer {
+
+    static int SEARCH_TIME = 1000, DELAY = 500; //ms
+    static int MAX_LOSS = 1000; //mates and blunders beyond this count the same
+    static int SABOTAGE_LOSS = 50; //a mole vote costing at least this much counts as sabotage
+    static long SEARCH_TIMEOUT = 10 * 60 * 1000; //deadline for searches that may wait behind live play
+
+    private final MoleBase moleBase;
+    private final Path journal;
+    private final LinkedBlockingQueue<ObjectNode> jobs = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "MoleAnalyzer"); t.setDaemon(true); return t;
+    });
+    private final AtomicLong games = new AtomicLong(0), plies = new AtomicLong(0), retries = new AtomicLong(0);
+
+    /**
+     * @param moleBase where results are stored
+     * @param path     journal directory for queued games
+     */
+    public MoleAnalyzer(MoleBase moleBase, String path) {
+        this.moleBase = moleBase;
+        journal = Path.of(path);
+        try {
+            Files.createDirectories(journal);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(journal, "*.json")) {
+                for (Path file : files) {
+                    jobs.add((ObjectNode) MoleServ.OBJ_MAPPER.readTree(file.toFile()));
+                }
+            }
+            if (!jobs.isEmpty()) MoleServ.log("Resuming analysis of " + jobs.size() + " game(s)");
+        } catch (IOException | ClassCastException e) {
+            MoleServ.log(Level.WARNING, "Analysis journal unreadable: " + e.getMessage());
+        }
+        worker.scheduleWithFixedDelay(this::step, DELAY, DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a saved game
+     *
+     * @param gameID the game's database id
+     * @param job    the game's players and plies (see {@link MoleGame#analysisJob})
+     */
+    public void queue(String gameID, ObjectNode job) {
+        job.put("game", gameID);
+        job.put("next", 0);
+        save(job);
+        jobs.add(job);
+    }
+
+    /**
+     * Analyses the next ply of the oldest queued game, unless live searches need the engines
+     */
+    private void step() {
+        ObjectNode job = jobs.peek();
+        EngineService service = MoleServ.STOCK_SERVICE;
+        if (job == null || service == null || !service.isAvailable() || service.isBusy()) return;
+        ArrayNode plyArray = (ArrayNode) job.get("plies");
+        int next = job.get("next").asInt();
+        try {
+            if (next < plyArray.size()) {
+                analyze((ObjectNode) plyArray.get(next), service);
+                plies.incrementAndGet();
+                job.put("next", next + 1);
+                save(job);
+            }
+            else if (store(job)) {
+                jobs.remove(job);
+                delete(job);
+                games.incrementAndGet();
+            }
+            else { //no database, or an insert failed: keep it (behind the others) for another try
+                save(job);
+                jobs.remove(job); jobs.add(job);
+                retries.incrementAndGet();
+            }
+        } catch (CancellationException e) { //preempted by live play: try again later
+            retries.incrementAndGet();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) retries.incrementAndGet(); //queue full or breaker open
+            else skip(job, next, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            skip(job, next, e);
+        }
+    }
+
+    private void skip(ObjectNode job, int ply, Throwable cause) {
+        MoleServ.log(Level.WARNING, "Analysis failed (game " + job.get("game").asText() + ", ply " + ply + "): " + cause);
+        job.put("next", ply + 1);
+        save(job);
+    }
+
+    /**
+     * Scores all of a ply's voted moves with one searchmoves search, after a short search for the
+     * engine's own choice (included as the reference the losses are measured from)
+     */
+    private void analyze(ObjectNode ply, EngineService service) throws Exception {
+        String fen = ply.get("fen").asText();
+        Set<String> moves = new LinkedHashSet<>();
+        for (JsonNode vote : ply.get("votes")) moves.add(vote.get("move").asText());
+        if (moves.isEmpty()) return;
+        EngineResult best = service.analyze(fen, 0, SEARCH_TIME, 1, deadline(), EngineService.PRIORITY.ANALYSIS)
+                .get(SEARCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        moves.add(best.bestMove);
+        EngineResult result = moves.size() == 1 ? best :
+                service.analyze(fen, 0, SEARCH_TIME, moves, deadline(), EngineService.PRIORITY.ANALYSIS)
+                        .get(SEARCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        ObjectNode scores = ply.putObject("scores");
+        for (EngineResult.Line line : result.lines) scores.put(line.move, line.centipawns());
+    }
+
+    private static long deadline() {
+        return System.currentTimeMillis() + SEARCH_TIMEOUT;
+    }
+
+    /**
+     * Sums up each player's votes and saves them with the game, skipping players stored by an earlier try
+     *
+     * @return whether every player is stored
+     */
+    private boolean store(ObjectNode job) {
+        Map<String, long[]> totals = new LinkedHashMap<>(); //name -> votes, loss, sabotaged
+        Map<String, JsonNode> players = new HashMap<>();
+        for (JsonNode player : job.get("players")) players.put(player.get("name").asText(), player);
+        for (JsonNode ply : job.get("plies")) {
+            JsonNode scores = ply.get("scores");
+            if (scores == null || scores.isEmpty()) continue;
+            int best = Integer.MIN_VALUE;
+            for (JsonNode score : scores) best = Math.max(best, score.asInt());
+            for (JsonNode vote : ply.get("votes")) {
+                JsonNode player = players.get(vote.get("player").asText());
+                JsonNode score = scores.get(vote.get("move").asText());
+                if (player == null || score == null) continue;
+                int loss = Math.min(MAX_LOSS, best - score.asInt());
+                long[] total = totals.computeIfAbsent(player.get("name").asText(), name -> new long[3]);
+                total[0]++; total[1] += loss;
+                if (loss >= SABOTAGE_LOSS) total[2]++;
+            }
+        }
+        String gameID = job.get("game").asText();
+        ArrayNode stored = job.has("stored") ? (ArrayNode) job.get("stored") : job.putArray("stored");
+        for (JsonNode name : stored) totals.remove(name.asText());
+        boolean complete = true;
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            JsonNode player = players.get(entry.getKey());
+            long[] total = entry.getValue();
+            boolean mole = player.get("mole").asBoolean();
+            boolean inserted = moleBase.makeQuery("INSERT INTO `analysis` (`Game`, `Player`, `Color`, `Mole`, `Votes`, `AvgLoss`, `Sabotage`) " +
+                            "VALUES (?, ?, ?, ?, ?, ?, ?)")
+                    .map(query -> query.runUpdate(statement -> {
+                        statement.setString(1, gameID);
+                        statement.setString(2, entry.getKey());
+                        statement.setInt(3, player.get("color").asInt());
+                        statement.setInt(4, mole ? 1 : 0);
+                        statement.setLong(5, total[0]);
+                        statement.setFloat(6, (float) total[1] / total[0]);
+                        if (mole) statement.setFloat(7, (float) total[2] / total[0]);
+                        else statement.setNull(7, Types.FLOAT);
+                    })).orElse(false);
+            if (inserted) stored.add(entry.getKey());
+            else complete = false;
+        }
+        return complete;
+    }
+
+    private Path file(ObjectNode job) {
+        return journal.resolve(job.get("game").asText().replaceAll("[^a-zA-Z0-9-]", "_") + ".json");
+    }
+
+    private void save(ObjectNode job) {
+        try {
+            Path tmp = journal.resolve(file(job).getFileName() + ".tmp");
+            MoleServ.OBJ_MAPPER.writeValue(tmp.toFile(), job);
+            Files.move(tmp, file(job), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            MoleServ.log(Level.WARNING, "Couldn't journal analysis: " + e.getMessage());
+        }
+    }
+
+    private void delete(ObjectNode job) {
+        try {
+            Files.deleteIfExists(file(job));
+        } catch (IOException e) {
+            MoleServ.log(Level.WARNING, "Couldn't remove analysis journal: " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    public ObjectNode toJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        node.put("queued", jobs.size());
+        node.put("games", games.get());
+        node.put("plies", plies.get());
+        node.put("retries", retries.get());
+        return node;
+    }
+}
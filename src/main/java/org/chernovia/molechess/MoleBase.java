@@ -75,21 +75,26 @@ public class MoleBase {
             }
         }
 
-        public void runUpdate(final StatementInitializer varSetter, final Consumer<SQLException> whenFails) {
+        /**
+         * @return false if the update failed
+         */
+        public boolean runUpdate(final StatementInitializer varSetter, final Consumer<SQLException> whenFails) {
             try (final PreparedStatement preparedStatement = conn.prepareStatement(statement)) {
                 varSetter.setVariables(preparedStatement);
                 preparedStatement.executeUpdate();
+                return true;
             } catch (SQLException e) {
                 whenFails.accept(e);
+                return false;
             }
         }
 
-        public void runUpdate(final StatementInitializer varSetter) {
-            runUpdate(varSetter, MoleBase::logSQLException);
+        public boolean runUpdate(final StatementInitializer varSetter) {
+            return runUpdate(varSetter, MoleBase::logSQLException);
         }
 
-        public void runUpdate() {
-            runUpdate(it -> {}, MoleBase::logSQLException);
+        public boolean runUpdate() {
+            return runUpdate(it -> {}, MoleBase::logSQLException);
         }
 
         private void cleanup() {
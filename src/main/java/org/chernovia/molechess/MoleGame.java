@@ -5,12 +5,20 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.bhlangonijr.chesslib.*;
 import com.github.bhlangonijr.chesslib.move.Move;
+import org.chernovia.lib.chess.AnalysisCache;
+import org.chernovia.lib.chess.EngineResult;
+import org.chernovia.lib.chess.EngineSession;
+import org.chernovia.lib.zugserv.Connection;
 
 import java.awt.*;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -48,6 +56,7 @@ public class MoleGame implements Runnable {
         ArrayList<MoveVote> alts;
         String fen;
         int color;
+        private ObjectNode json; //a finished ply never changes, so it's serialized once
 
         public MoveVotes(ArrayList<MoveVote> votes, String fenString, int c) {
             fen = fenString;
@@ -59,7 +68,11 @@ public class MoleGame implements Runnable {
             }
         }
 
-        public ObjectNode toJSON() {
+        public synchronized ObjectNode toJSON() {
+            if (json != null) {
+                SnapshotCache.hit(SnapshotCache.KIND.PLY); return json;
+            }
+            SnapshotCache.miss(SnapshotCache.KIND.PLY);
             ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
             ArrayNode altsArray = MoleServ.OBJ_MAPPER.createArrayNode();
             for (MoveVote alt : alts) altsArray.add(alt.toJSON());
@@ -67,6 +80,7 @@ public class MoleGame implements Runnable {
             node.set("selected", selected.toJSON());
             node.put("fen", fen);
             node.put("turn", color);
+            json = node;
             return node;
         }
     }
@@ -78,19 +92,31 @@ public class MoleGame implements Runnable {
         int color;
         int bombFlag = 99;
         int inspectFlag = -12;
+        Topic<MoleUser> topic; //its players still in the game (for team-only messages)
+        private ObjectNode json; //last toJSON, reused while its players' nodes and vote count are unchanged
+        private List<ObjectNode> jsonPlayers = List.of();
+        private int jsonVoteCount;
 
         public MoleTeam() {
             players = new ArrayList<>(); startPlayers = new ArrayList<>();
             voteCount = 0;
         }
 
-        public ObjectNode toJSON() {
+        public synchronized ObjectNode toJSON() {
+            List<ObjectNode> playerNodes = new ArrayList<>(players.size());
+            for (MolePlayer player : players) playerNodes.add(player.toJSON());
+            if (json != null && voteCount == jsonVoteCount && SnapshotCache.same(playerNodes, jsonPlayers)) {
+                SnapshotCache.hit(SnapshotCache.KIND.TEAM); return json;
+            }
+            SnapshotCache.miss(SnapshotCache.KIND.TEAM);
+            jsonPlayers = playerNodes; jsonVoteCount = voteCount;
             ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
             ArrayNode playerArray = MoleServ.OBJ_MAPPER.createArrayNode();
-            for (MolePlayer player : players) playerArray.add(player.toJSON());
+            playerArray.addAll(playerNodes);
             node.set("players", playerArray);
             node.put("vote_count", voteCount);
             node.put("color", color);
+            json = node;
             return node;
         }
 
@@ -155,7 +181,8 @@ public class MoleGame implements Runnable {
     private final ArrayList<MolePlayer> playerBucket = new ArrayList<>();
     private final boolean BUCKETS = true;
     private final MoleTeam[] teams = new MoleTeam[2];
-    ArrayList<MoleUser> observers = new ArrayList<>();
+    final Topic<MoleUser> observers; //watching, not playing
+    private final Topic<MoleUser> audience; //players still here and observers
     private final MoleListener listener;
     private final MoleUser creator;
     private final String title;
@@ -168,6 +195,17 @@ public class MoleGame implements Runnable {
     private double calcFactor = .25;
     private Board board;
     private Thread gameThread;
+    private final List<CompletableFuture<?>> searches = new CopyOnWriteArrayList<>();
+    private final Map<String, CompletableFuture<EngineResult>> ponders = new ConcurrentHashMap<>(); //keyed by normalized FEN
+    private final String startFEN;
+    private boolean inBook = true; //until a position misses the opening book
+    private final EvalFeed evalFeed = new EvalFeed(this);
+    private PositionContext position; //legal moves and SAN for the current ply
+    private final HashMap<Long, Integer> positionCounts = new HashMap<>(); //Zobrist key -> occurrences since the last irreversible move
+    private int repetitions = 1; //occurrences of the current position
+    private final VoteLedger voteLedger = new VoteLedger(); //the current turn's votes
+    private VoteLedger.POLICY votePolicy = VoteLedger.POLICY.WEIGHTED;
+    private EngineSession session; //opened when the game first needs an AI move
     private int ply;
     private ArrayList<MoveVotes> moveHistory; //private List<String> selectedMoves = new ArrayList<>();
     private GAME_PHASE phase = GAME_PHASE.PREGAME;
@@ -192,6 +230,19 @@ public class MoleGame implements Runnable {
     private boolean dinked = false;
     private final String CR = System.getProperty("line.separator"); //System.lineSeparator();
     private StringBuffer pgnBuff = new StringBuffer();
+    private final Object snapshotLock = new Object();
+    private ObjectNode snapshot; //bucket, teams, title, creator and FEN, rebuilt when the version moves
+    private List<ObjectNode> snapshotParts = List.of(); //the bucket and team nodes it was built from
+    private PositionContext snapshotPosition;
+    private ArrayNode historySnapshot;
+    private int historySize;
+    private long version = 0; //counts snapshot rebuilds
+    private ObjectNode lobbySummary, lobbySnapshot; //lobbyJSON and the snapshot it was built from
+    private GAME_PHASE lobbyPhase;
+    private int lobbyTurn;
+    static final String MSG_DELTA = "game_delta";
+    private final Object deltaLock = new Object();
+    private volatile long seq = 0; //numbers the deltas, so clients can tell when they've missed one
 
     public MoleGame(MoleUser c, String t, String startFEN, MoleListener l) {
         gameLog = Logger.getLogger(t);
@@ -210,10 +261,17 @@ public class MoleGame implements Runnable {
         listener = l;
         teams[COLOR_BLACK] = new MoleTeam(); teams[COLOR_BLACK].color = COLOR_BLACK;
         teams[COLOR_WHITE] = new MoleTeam(); teams[COLOR_WHITE].color = COLOR_WHITE;
+        observers = Topic.open(Topic.OBSERVERS, t, new MoleUser[0]);
+        audience = Topic.open(Topic.GAME, t, new MoleUser[0]);
+        for (MoleTeam team : teams) team.topic = Topic.open(Topic.TEAM, t + ":" + colorString(team.color), new MoleUser[0]);
         moveHistory = new ArrayList<>();
         lastActivity = System.currentTimeMillis();
         turn = COLOR_WHITE;
+        this.startFEN = startFEN;
         board = new Board(); board.loadFromFen(startFEN);
+        position = new PositionContext(board);
+        positionCounts.put(board.getZobristKey(), 1);
+        evalFeed.setPosition(startFEN);
         ply = 1;
         Color[] COLORS = {
                 new Color(255, 92, 92),
@@ -325,6 +383,17 @@ public class MoleGame implements Runnable {
         }
     }
 
+    public void setVotePolicy(String policy) {
+        try {
+            VoteLedger.POLICY p = VoteLedger.POLICY.valueOf(policy.toUpperCase());
+            if (votePolicy != p) {
+                votePolicy = p; spam("Vote Policy: " + p.name().toLowerCase());
+            }
+        } catch (IllegalArgumentException e) {
+            spam("Unknown vote policy: " + policy);
+        }
+    }
+
     public int getKickFlag() {
         return kickFlag;
     }
@@ -342,23 +411,68 @@ public class MoleGame implements Runnable {
         }
     }
 
+    /**
+     * @return a new node sharing the memoized parts of the game (which must not be modified)
+     */
     public ObjectNode toJSON(boolean history) {
         ObjectNode obj = MoleServ.OBJ_MAPPER.createObjectNode();
-        ArrayNode buckArray = MoleServ.OBJ_MAPPER.createArrayNode();
-        if (BUCKETS) {
-            for (MolePlayer p : playerBucket) buckArray.add(p.toJSON());
-            obj.set("bucket",buckArray);
+        synchronized (snapshotLock) {
+            obj.setAll(snapshot());
+            if (history) obj.set("history", historyToJSON());
         }
-        ArrayNode teamArray = MoleServ.OBJ_MAPPER.createArrayNode();
-        for (MoleTeam team : getTeams()) teamArray.add(team.toJSON());
-        obj.set("teams", teamArray);
-        obj.put("title", title);
-        obj.put("creator", creator.name);
-        obj.put("currentFEN", board.getFen());
-        if (history) obj.set("history", historyToJSON());
+        putPhase(obj);
+        obj.put("seq", seq);
+        return obj;
+    }
+
+    /**
+     * @return the game as listed in the lobby (toJSON without history, as of when it last changed),
+     * the same node until the snapshot, turn or phase changes; the time remaining isn't included (see lobbyEntry)
+     */
+    public ObjectNode lobbyJSON() {
+        synchronized (snapshotLock) {
+            ObjectNode snap = snapshot();
+            if (lobbySummary == null || snap != lobbySnapshot || phase != lobbyPhase || turn != lobbyTurn) {
+                lobbySnapshot = snap; lobbyPhase = phase; lobbyTurn = turn;
+                lobbySummary = toJSON(false);
+                lobbySummary.remove("timeRemaining");
+            }
+            return lobbySummary;
+        }
+    }
+
+    /**
+     * @return lobbyJSON plus the time remaining as of now, for sending
+     */
+    public ObjectNode lobbyEntry() {
+        ObjectNode entry = MoleServ.OBJ_MAPPER.createObjectNode();
+        entry.setAll(lobbyJSON());
+        putTime(entry);
+        return entry;
+    }
+
+    private void putPhase(ObjectNode obj) {
+        putTime(obj);
+        obj.put("turn", turn);
+        obj.put("phase",phase.toString());
+    }
+
+    private void putTime(ObjectNode obj) {
         long elapsed = (System.currentTimeMillis() - phaseStamp) / 1000; //TODO: weird negative time bug
         if (phase == GAME_PHASE.VOTING) obj.put("timeRemaining",moveTime - elapsed);
         else if (phase == GAME_PHASE.VETO) obj.put("timeRemaining",vetoTime - elapsed);
+    }
+
+    /**
+     * @return the bucket and teams (as in toJSON), plus the turn and phase
+     */
+    public ObjectNode rosterJSON() {
+        ObjectNode obj = MoleServ.OBJ_MAPPER.createObjectNode();
+        synchronized (snapshotLock) {
+            ObjectNode snap = snapshot();
+            if (BUCKETS) obj.set("bucket", snap.get("bucket"));
+            obj.set("teams", snap.get("teams"));
+        }
         obj.put("turn", turn);
         obj.put("phase",phase.toString());
         return obj;
@@ -366,15 +480,25 @@ public class MoleGame implements Runnable {
 
     public void addObserver(MoleUser user) {
         if (getPlayer(user) == null) { //can't observe game you're in
-            if (!observers.contains(user)) {
-                observers.add(user);
-            } //else update(user, new MoleResult(false, "Error: already observing"));
+            observers.subscribe(user); //else update(user, new MoleResult(false, "Error: already observing"));
+            updateTopics(user, null);
             update(user, new MoleResult("Observing: " + title), true);
+            evalFeed.audienceChanged(); evalFeed.sendTo(user);
         }
     }
 
+    /**
+     * Wakes the eval feed for a connection that's started following (obs_player) one of the players
+     */
+    public void watcherAdded(MoleUser user, Connection conn) {
+        if (getPlayer(user) == null) return;
+        evalFeed.audienceChanged(); evalFeed.sendTo(conn);
+    }
+
     public void removeObserver(MoleUser user) {
-        observers.remove(user);
+        observers.unsubscribe(user);
+        updateTopics(user, getPlayer(user));
+        evalFeed.audienceChanged();
         user.tell("unobs",this.toJSON(false));
     }
 
@@ -385,7 +509,7 @@ public class MoleGame implements Runnable {
         MolePlayer player = getPlayer(user);
         if (player != null) {
             if (player.away) {
-                player.away = false;
+                player.away = false; recountVotes();
                 update(user, new MoleResult("Rejoining game: " + title), true);
                 update(new MoleResult(user.name + " rejoins the game"));
                 removeObserver(user);
@@ -428,9 +552,10 @@ public class MoleGame implements Runnable {
             if (phase == GAME_PHASE.PREGAME) {
                 if (BUCKETS) playerBucket.remove(player); else teams[player.color].players.remove(player);
             } else {
-                player.away = true;
+                player.away = true; recountVotes();
                 if (phase == GAME_PHASE.POSTGAME && user.equals(creator)) interruptPhase();
             }
+            updateTopics(user, phase == GAME_PHASE.PREGAME ? null : player);
             update(new MoleResult(user.name + " leaves"));
             user.tell("part",toJSON(false));
             if (isDeserted()) {
@@ -461,7 +586,8 @@ public class MoleGame implements Runnable {
                 update(kicker, new MoleResult(false, "Cannot kick robots!"));
             } else {
                 update(new MoleResult(kicker.name + " kicks " + username + " (reason: inactivity)"));
-                player.away = true;
+                player.away = true; recountVotes();
+                updateTopics(player.user, player);
             }
         }
     }
@@ -501,8 +627,24 @@ public class MoleGame implements Runnable {
     }
 
     public void closeGame() {
-        closing = true; interruptPhase();
+        closing = true; cancelPonders(); interruptPhase(); closeSession(); evalFeed.stop();
         listener.finished(this);
+        observers.close(); audience.close();
+        for (MoleTeam team : teams) team.topic.close();
+    }
+
+    /**
+     * Matches a user's subscriptions to whether they're watching, playing (and for which team) or gone
+     *
+     * @param player the user's player, if they're in the game
+     */
+    private void updateTopics(MoleUser user, MolePlayer player) {
+        if (player != null && player.ai) return; //nobody to tell
+        boolean present = player != null && !player.away;
+        if (present || observers.contains(user)) audience.subscribe(user); else audience.unsubscribe(user);
+        for (MoleTeam team : teams) {
+            if (present && player.color == team.color) team.topic.subscribe(user); else team.topic.unsubscribe(user);
+        }
     }
 
     public void startGame(MoleUser user) {
@@ -534,12 +676,14 @@ public class MoleGame implements Runnable {
                     aiFill(COLOR_WHITE);
                 }
 
-                ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
-                node.put("source",title);
-                node.put("color","white");
-                for (MolePlayer p : teams[COLOR_WHITE].players) p.user.tell("side", node);
-                node.put("color","black");
-                for (MolePlayer p : teams[COLOR_BLACK].players) p.user.tell("side", node);
+                for (MoleTeam team : teams) for (MolePlayer p : team.players) updateTopics(p.user, p);
+
+                for (MoleTeam team : teams) {
+                    ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+                    node.put("source",title);
+                    node.put("color",team.color == COLOR_WHITE ? "white" : "black");
+                    for (MoleUser u : team.topic.subscribers()) u.tell("side", node);
+                }
 
                 gameThread = new Thread(this);
                 gameThread.start();
@@ -659,7 +803,7 @@ public class MoleGame implements Runnable {
         ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
         node.put("move", ply);
         node.set("list",listNode);
-        spamNode("votelist",node);
+        spamDelta("votes", node, "votelist", () -> node);
     }
 
     //TODO: fix weird name voting bug
@@ -721,9 +865,15 @@ public class MoleGame implements Runnable {
     }
 
     public void interruptPhase() {
+        cancelSearches();
         if (gameThread != null && gameThread.getState() == Thread.State.TIMED_WAITING) gameThread.interrupt();
     }
 
+    private void cancelSearches() {
+        for (CompletableFuture<?> search : searches) search.cancel(true);
+        searches.clear();
+    }
+
     //private void detonate() {}
 
     public void run() {
@@ -736,8 +886,7 @@ public class MoleGame implements Runnable {
         startPGN();
         while (playing && !closing) {
             spam("Turn #" + ply + ": " + colorString(turn));
-            updateMoveVotes();
-            autoPlay(turn); //boolean timeout =
+            startTurn();
             newPhase(GAME_PHASE.VOTING, moveTime);
             if (playing && !closing) {
                 Move move = null;
@@ -752,7 +901,7 @@ public class MoleGame implements Runnable {
                     bomb = true;
                 }
                 else {
-                    move = pickMove(moveList);
+                    move = pickVote(moveList);
                 }
 
                 if (mole != null && counterMole != null && moleVeto && (mole.isRampaging() || bomb)) {
@@ -762,17 +911,18 @@ public class MoleGame implements Runnable {
                     newPhase(GAME_PHASE.VETO,vetoTime); //TODO: test for closing?
                     if (veto) {
                         spam("Move vetoed!");
-                        moveList.remove(move);
-                        move = pickMove(moveList);
+                        moveList.remove(move); voteLedger.remove(move);
+                        move = pickVote(moveList);
                         veto = false; bomb = false;
                         spam("The vetoing mole once voted for the following move: " + revealMoleMove(counterMole));
                     }
                 }
 
-                if (bomb) for (MolePlayer p : teams[turn].players) p.move = null;
+                if (bomb) for (MolePlayer p : teams[turn].players) voteLedger.vote(p, null); //withdrawn from the tally too
 
                 if (makeMove(move).success) {
                     MoveVotes votes = getMoveVotes(turn, board.getFen(), move,bomb);
+                    evalFeed.setPosition(board.getFen());
                     moveHistory.add(votes);
                     updatePGN(votes);
                     //update(new MoleResult("Selected Move: " + move.getSan()), true); //TODO: make less spammy
@@ -781,7 +931,7 @@ public class MoleGame implements Runnable {
                     node.put("title",title);
                     node.put("ply",ply);
                     node.set("move_votes",votes.toJSON());
-                    spamNode("move",node); //selectedMoves.add(move.getSan());
+                    spamDelta("move", node, "move", () -> node); //selectedMoves.add(move.getSan());
                     spam("Selected Move: " + move.getSan());
                     endgameCheck();
                     if (playing) {
@@ -814,8 +964,17 @@ public class MoleGame implements Runnable {
         }
     }
 
+    /**
+     * @return a voted move chosen by the vote policy, or a random one if nobody voted
+     */
+    private Move pickVote(List<Move> moves) {
+        int key = voteLedger.pick(votePolicy);
+        for (Move move : moves) if (VoteLedger.key(move) == key) return move;
+        return pickMove(moves);
+    }
+
     private Move getRandomMove() {
-        Move move = pickMove(board.legalMoves()); move.setSan(getSan(move)); return move;
+        return position.copy(pickMove(position.getMoves()));
     }
 
     private MolePlayer testPrediction(MolePlayer mole, MolePlayer counterMole) {
@@ -851,7 +1010,7 @@ public class MoleGame implements Runnable {
         else {
             user.tell("The mole played: " + revealMoleMove(getMole(player.color)),this);
             player.inspecting = true;
-            player.move = getRandomMove();
+            voteLedger.vote(player, getRandomMove());
             teams[player.color].inspectFlag = 0;
         }
     }
@@ -909,10 +1068,109 @@ public class MoleGame implements Runnable {
         return moves;
     }
 
+    /**
+     * Opens the side to move's voting and has its bots vote. Book moves, cached searches and ponder hits
+     * vote at once, so the phase is opened first (after a veto it would otherwise still be VETO).
+     */
+    void startTurn() {
+        updateMoveVotes();
+        voteLedger.reset(teams[turn].players);
+        phase = GAME_PHASE.VOTING; //announced (and timed) by newPhase
+        autoPlay(turn);
+    }
+
     private void autoPlay(int turn) { //TODO: possible timechange bug?
-        for (MolePlayer player : teams[turn].players) {
-            if (player.ai) player.analyzePosition(board.getFen(), (int) (moveTime * calcFactor) * 1000);
+        searches.removeIf(CompletableFuture::isDone);
+        CompletableFuture<EngineResult> pondered = takePonder(board.getFen());
+        List<MolePlayer> bots = getBots(turn);
+        if (bots.isEmpty()) return;
+        if (inBook && pondered == null) {
+            if (MolePlanner.playBook(bots, board.getFen())) return;
+            inBook = false;
         }
+        long deadline = System.currentTimeMillis() + (moveTime * 1000L);
+        if (pondered != null) searches.add(MolePlanner.plan(bots, board.getFen(), pondered));
+        else searches.add(MolePlanner.plan(bots, getSession(), board.getFen(), getThinkTime(), deadline));
+    }
+
+    /**
+     * @return the game's engine session, brought up to date with the moves played so far (or null if unavailable)
+     */
+    private EngineSession getSession() {
+        if (session == null && MoleServ.STOCK_SERVICE != null) session = MoleServ.STOCK_SERVICE.openSession(startFEN);
+        if (session == null) return null;
+        List<String> moves = new ArrayList<>();
+        for (MoveVotes votes : moveHistory) moves.add(votes.selected.move.toString().toLowerCase());
+        session.setMoves(moves);
+        return session;
+    }
+
+    private void closeSession() {
+        if (session != null && MoleServ.STOCK_SERVICE != null) MoleServ.STOCK_SERVICE.closeSession(session);
+        session = null;
+    }
+
+    private List<MolePlayer> getBots(int color) {
+        ArrayList<MolePlayer> bots = new ArrayList<>();
+        for (MolePlayer player : teams[color].players) if (player.ai && player.isActive()) bots.add(player);
+        return bots;
+    }
+
+    private int getThinkTime() {
+        return (int) (moveTime * calcFactor) * 1000;
+    }
+
+    /**
+     * Speculatively searches the positions after the most popular move votes, so the other
+     * side's bots can vote as soon as the move is made
+     */
+    private synchronized void ponder() {
+        if (MoleServ.PONDER_WIDTH < 1 || phase != GAME_PHASE.VOTING) return;
+        int bots = getBots(getNextTurn()).size();
+        if (bots == 0) return;
+        HashMap<String, Integer> tally = new HashMap<>();
+        HashMap<String, Move> votes = new HashMap<>();
+        for (MolePlayer p : teams[turn].players) if (p.move != null) {
+            tally.merge(p.move.toString(), 1, Integer::sum); votes.put(p.move.toString(), p.move);
+        }
+        List<String> candidates = tally.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(MoleServ.PONDER_WIDTH).map(Map.Entry::getKey).collect(Collectors.toList());
+        HashSet<String> wanted = new HashSet<>();
+        long deadline = phaseStamp + (2 * moveTime * 1000L); //must be ready by the end of the next turn
+        for (String candidate : candidates) {
+            Board next = board.clone();
+            if (!next.doMove(votes.get(candidate))) continue;
+            String fen = next.getFen(), key = AnalysisCache.normalizeFen(fen);
+            if (inBook && MoleServ.BOOK != null && !MoleServ.BOOK.lookup(fen).isEmpty()) continue;
+            wanted.add(key);
+            ponders.compute(key, (k, search) -> search == null || search.isCompletedExceptionally() ?
+                    MolePlanner.search(bots, fen, getThinkTime(), deadline, true) : search);
+        }
+        ponders.entrySet().removeIf(entry -> {
+            if (wanted.contains(entry.getKey())) return false;
+            entry.getValue().cancel(true); return true;
+        });
+    }
+
+    /**
+     * Claims the pondered search for the position actually reached, cancelling the rest
+     *
+     * @return the matching search, or null if the prediction missed
+     */
+    private synchronized CompletableFuture<EngineResult> takePonder(String fen) {
+        if (ponders.isEmpty()) return null;
+        CompletableFuture<EngineResult> search = ponders.remove(AnalysisCache.normalizeFen(fen));
+        cancelPonders();
+        if (search != null && !search.isCompletedExceptionally()) {
+            MolePlanner.PONDER_HITS.incrementAndGet(); return search;
+        }
+        MolePlanner.PONDER_MISSES.incrementAndGet(); return null;
+    }
+
+    private synchronized void cancelPonders() {
+        for (CompletableFuture<EngineResult> search : ponders.values()) search.cancel(true);
+        ponders.clear();
     }
 
     private void handleMoleVote(MolePlayer player, MolePlayer p) {
@@ -929,7 +1187,9 @@ public class MoleGame implements Runnable {
             if (suspect.role == MolePlayer.ROLE.MOLE) { //TODO: updates instead of spam?
                 spam(suspect.user.name + " was " + "the Mole!",suspect); //award(player.color, moleBonus);
                 pgnBuff.append(" {").append("VOTED OFF: ").append(suspect.user.name).append("} ");
-                if (defection) defect(suspect); else suspect.votedOff = true;
+                if (defection) defect(suspect); else {
+                    suspect.votedOff = true; recountVotes();
+                }
             } else {
                 MolePlayer mole = getMole(player.color);
                 if (mole != null) {
@@ -967,6 +1227,8 @@ public class MoleGame implements Runnable {
         player.move = null;
         player.skipped = 0;
         teams[player.color].players.add(player);
+        recountVotes();
+        updateTopics(player.user, player);
         update(new MoleResult(player.user.name + " defects to " + colorString(newColor) + "!"));
         ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
         node.put("game",title);
@@ -974,10 +1236,45 @@ public class MoleGame implements Runnable {
         spamNode("defection",node);
     }
 
-    private JsonNode historyToJSON() {
-        ArrayNode historyNode = MoleServ.OBJ_MAPPER.createArrayNode();
-        for (MoveVotes votes : moveHistory) historyNode.add(votes.toJSON());
-        return historyNode;
+    /**
+     * @return the game's unchanging parts, rebuilt only when a bucket or team node or the position has changed
+     */
+    private ObjectNode snapshot() {
+        List<ObjectNode> parts = new ArrayList<>();
+        if (BUCKETS) for (MolePlayer p : playerBucket) parts.add(p.toJSON());
+        for (MoleTeam team : getTeams()) parts.add(team.toJSON());
+        if (snapshot != null && position == snapshotPosition && SnapshotCache.same(parts, snapshotParts)) {
+            SnapshotCache.hit(SnapshotCache.KIND.GAME); return snapshot;
+        }
+        SnapshotCache.miss(SnapshotCache.KIND.GAME);
+        version++;
+        snapshotParts = parts; snapshotPosition = position;
+        int teamStart = BUCKETS ? playerBucket.size() : 0;
+        ObjectNode obj = MoleServ.OBJ_MAPPER.createObjectNode();
+        if (BUCKETS) obj.putArray("bucket").addAll(parts.subList(0, teamStart));
+        obj.putArray("teams").addAll(parts.subList(teamStart, parts.size()));
+        obj.put("title", title);
+        obj.put("creator", creator.name);
+        obj.put("currentFEN", board.getFen());
+        obj.put("version", version);
+        snapshot = obj;
+        return snapshot;
+    }
+
+    /**
+     * @return the move history, extended with only the plies finished since the last call
+     */
+    private ArrayNode historyToJSON() {
+        if (historySnapshot == null || moveHistory.size() < historySize) {
+            historySnapshot = MoleServ.OBJ_MAPPER.createArrayNode(); historySize = 0;
+        }
+        if (moveHistory.size() > historySize) { //a new array, as the old one may still be being sent
+            ArrayNode historyNode = MoleServ.OBJ_MAPPER.createArrayNode();
+            historyNode.addAll(historySnapshot);
+            for (int i = historySize; i < moveHistory.size(); i++) historyNode.add(moveHistory.get(i).toJSON());
+            historySnapshot = historyNode; historySize = moveHistory.size();
+        }
+        return historySnapshot;
     }
 
     public MolePlayer getPlayer(MoleUser user) {
@@ -1013,9 +1310,11 @@ public class MoleGame implements Runnable {
         phase = p;
         if (newTime > 0) { moveTime = newTime; newTime = 0; } //TODO: clarify movetime setting effects
         phaseStamp = System.currentTimeMillis();
-        spamNode("phase",toJSON(false));
+        ObjectNode phaseNode = MoleServ.OBJ_MAPPER.createObjectNode();
+        putPhase(phaseNode);
+        spamDelta("phase", phaseNode, "phase", () -> toJSON(false));
         boolean timeout = true;
-        if (seconds > 0) {
+        if (seconds > 0 && !(p == GAME_PHASE.VOTING && votesComplete())) { //cached AI votes can arrive before the phase starts
             try { Thread.sleep((seconds * 1000L)); } catch (InterruptedException e) { timeout = false; }
         }
         if (playing) endgameCheck();
@@ -1028,6 +1327,8 @@ public class MoleGame implements Runnable {
             else if (board.isStaleMate()) endGame(COLOR_UNKNOWN, "stalemate");
             else if (board.isMated()) endGame(turn, "checkmate");
             else if (board.isInsufficientMaterial()) endGame(COLOR_UNKNOWN, "insufficient material");
+            else if (repetitions >= 3) endGame(COLOR_UNKNOWN, "threefold repetition");
+            else if (board.getHalfMoveCounter() >= 100) endGame(COLOR_UNKNOWN, "fifty move rule");
         }
         return !playing;
     }
@@ -1048,7 +1349,8 @@ public class MoleGame implements Runnable {
         }
 
         if (!casual && phase != GAME_PHASE.PREGAME) {
-            listener.saveGame(createPGN(result), teams[COLOR_WHITE].players, teams[COLOR_BLACK].players, winner);
+            listener.saveGame(createPGN(result, reason), teams[COLOR_WHITE].players, teams[COLOR_BLACK].players, winner,
+                    analysisJob());
             for (MolePlayer player : teams[COLOR_WHITE].startPlayers) {
                 if (player.role == MolePlayer.ROLE.MOLE) spam("White Mole: " + player.user.name);
             }
@@ -1058,9 +1360,39 @@ public class MoleGame implements Runnable {
         }
 
         playing = false;
+        cancelPonders();
         interruptPhase();
     }
 
+    /**
+     * @return the human players and every ply's votes, for post-game analysis
+     */
+    ObjectNode analysisJob() {
+        ObjectNode job = MoleServ.OBJ_MAPPER.createObjectNode();
+        ArrayNode players = job.putArray("players");
+        for (MoleTeam team : teams) for (MolePlayer player : team.startPlayers) if (!player.ai) {
+            ObjectNode node = players.addObject();
+            node.put("name", player.user.name);
+            node.put("color", team.color);
+            node.put("mole", player.role == MolePlayer.ROLE.MOLE);
+        }
+        ArrayNode plies = job.putArray("plies");
+        String fen = startFEN;
+        for (MoveVotes votes : moveHistory) {
+            ObjectNode ply = plies.addObject();
+            ply.put("fen", fen); //the position voted on
+            ArrayNode voteArray = ply.putArray("votes");
+            List<MoveVote> all = new ArrayList<>(votes.alts); all.add(votes.selected);
+            for (MoveVote vote : all) {
+                ObjectNode node = voteArray.addObject();
+                node.put("player", vote.player.user.name);
+                node.put("move", vote.move.toString().toLowerCase());
+            }
+            fen = votes.fen;
+        }
+        return job;
+    }
+
     private void startPGN() {
         pgnBuff.append(pgnTag("Site","molechess.com") + CR);
         pgnBuff.append(pgnTag("Date", LocalDate.now().toString()) + CR);
@@ -1084,10 +1416,22 @@ public class MoleGame implements Runnable {
                     .append("} ) ");
     }
 
-    private String createPGN(String result) {
+    private String createPGN(String result, String reason) {
         StringBuffer pgn = new StringBuffer();
         pgn.append(pgnTag("Result",result) + CR);
-        return pgn.append(pgnBuff).toString();
+        pgn.append(pgnTag("Termination",termination(reason)) + CR);
+        return pgn.append(pgnBuff).append(" {").append(reason).append("}").toString(); //the detail
+    }
+
+    /**
+     * @return the standard PGN Termination value for an end reason (mates, resignations, draws by rule and
+     * mole votes all end a game by its rules)
+     */
+    static String termination(String reason) {
+        return switch (reason) {
+            case "deserted", "forfeit" -> "abandoned";
+            default -> "normal";
+        };
     }
 
     private String getPgnMoveArrows(MoveVotes votes) {
@@ -1193,71 +1537,11 @@ public class MoleGame implements Runnable {
                 .reduce("", (acc, p) -> acc + p);
     }
 
-    private String getFromString(final Piece piece, final Square from, final Square to) {
-        if (piece.getPieceType() == PieceType.PAWN || piece.getPieceType() == PieceType.NONE) {
-            return "";
-        }
-        final List<Move> conflictingMoves = board.getPieceLocation(piece)
-                .stream()
-                .map(square -> new Move(square.value() + to.value(), board.getSideToMove()))
-                .filter(move -> board.legalMoves().contains(move) && move.getFrom() != from)
-                .collect(Collectors.toList());
-        if (conflictingMoves.size() < 1) {
-            return "";
-        }
-        final boolean conflictOnFile = conflictingMoves.stream().map(move -> move.getFrom().getFile()).anyMatch(file -> file == from.getFile());
-        final boolean conflictOnRank = conflictingMoves.stream().map(move -> move.getFrom().getRank()).anyMatch(rank -> rank == from.getRank());
-        if (conflictOnFile && conflictOnRank) {
-            return from.value();
-        } else if (conflictOnFile) {
-            return from.value().substring(1, 2);
-        } else {
-            return from.value().substring(0, 1);
-        }
-    }
-
-    public String getSan(final Move move) {
-        return getSan(move,board);
-    }
-
-    /*
-     * Returns a SAN representation of given move
-     * @param move the move object
-     * @param sanBoard the board to make the move on
-     * @return San representation of the given move if the move is legal; null otherwise
+    /**
+     * @return the SAN of a move in the current position, or null if it isn't legal
      */
-    private String getSan(final Move move, final Board sanBoard) {
-        if (sanBoard.legalMoves().contains(move)) {
-            final Board auxBoard = sanBoard.clone();
-            auxBoard.doMove(move);
-            Square from = move.getFrom(); Square to = move.getTo();
-            Piece piece = sanBoard.getPiece(from);
-            final String ending = auxBoard.isMated() ? "#" : auxBoard.isKingAttacked() ? "+" : "";
-            if (piece.equals(Piece.BLACK_KING) && from.equals(Square.E8)) {
-                if (to.equals(Square.G8)) {
-                    return "O-O" + ending;
-                } else if (to.equals(Square.C8)) {
-                    return "O-O-O" + ending;
-                }
-            } else if (piece.equals(Piece.WHITE_KING) && from.equals(Square.E1)) {
-                if (to.equals(Square.G1)) {
-                    return "O-O" + ending;
-                } else if (to.equals(Square.C1)) {
-                    return "O-O-O" + ending;
-                }
-            }
-
-            Piece target = sanBoard.getPiece(move.getTo());
-            final String takes = (target != Piece.NONE ||
-                    (piece.getPieceType() == PieceType.PAWN && !from.getFile().equals(to.getFile()))) ? "x" : "";
-            final String promotion = move.getPromotion() != Piece.NONE ? "=" + move.getPromotion().getSanSymbol() : "";
-            final String fromStr = getFromString(piece,from,to).toLowerCase();
-            final String toStr = to.value().toLowerCase();
-            final String sanSymbol = (piece.getSanSymbol().equals("") && takes.equals("x") && fromStr.equals("")) ?
-                    from.value().substring(0, 1).toLowerCase() : piece.getSanSymbol();
-            return sanSymbol + fromStr + takes + toStr + promotion + ending;
-        }
-        return null;
+    public String getSan(final Move move) {
+        return position.getSan(move);
     }
 
     private String getTurnPrefix() {
@@ -1268,8 +1552,9 @@ public class MoleGame implements Runnable {
     private boolean addMoveVote(final MolePlayer player, final Move move) { //log("Adding: " + move + " -> " + move.getPromotion());
         final String san = getSan(move); if (san == null) return false;
         move.setSan(san);
-        player.move = move;
-        if (countMoveVotes(player.color) >= activePlayers(turn, true)) interruptPhase();
+        voteLedger.vote(player, move);
+        ponder();
+        if (votesComplete()) interruptPhase();
         return true;
     }
 
@@ -1280,10 +1565,15 @@ public class MoleGame implements Runnable {
         return true;
     }
 
-    private int countMoveVotes(int color) {
-        int count = 0;
-        for (MolePlayer player : teams[color].players) if (player.move != null) count++;
-        return count;
+    private boolean votesComplete() {
+        return voteLedger.isComplete();
+    }
+
+    /**
+     * Recounts the current turn's votes and voters after a player leaves, returns, defects or is voted off
+     */
+    private void recountVotes() {
+        voteLedger.reset(teams[turn].players);
     }
 
     private void clearPlayerFlags() {
@@ -1327,18 +1617,37 @@ public class MoleGame implements Runnable {
     private Optional<Move> getMove(final String moveStr) { //log("Attempted Move: " + moveStr);
         final Matcher moveStrMatcher = VALID_MOVE_PATTERN.matcher(moveStr);
         if (moveStrMatcher.find()) {
-            return Optional.of(new Move(moveStrMatcher.group(), turn == COLOR_BLACK ? Side.BLACK : Side.WHITE));
+            Move move = position.getMove(moveStrMatcher.group()); //illegal moves are rejected (with a reason) later
+            return Optional.of(move != null ? move : new Move(moveStrMatcher.group(), turn == COLOR_BLACK ? Side.BLACK : Side.WHITE));
         }
         return Optional.empty();
     }
 
-    private MoleResult makeMove(Move move) {
+    MoleResult makeMove(Move move) {
         if (board.doMove(move)) {
+            position = new PositionContext(board);
+            trackRepetition();
             gameLog.log(Level.INFO,"New Move: " + getTurnPrefix() + move);
             return new MoleResult("Move: " + move);
         } else return new MoleResult(false, "Invalid Move: " + move); //shouldn't occur
     }
 
+    /**
+     * Counts the new position's occurrences, forgetting everything before a capture or pawn move
+     * (those positions can't recur)
+     */
+    private void trackRepetition() {
+        if (board.getHalfMoveCounter() == 0) positionCounts.clear();
+        repetitions = positionCounts.merge(board.getZobristKey(), 1, Integer::sum);
+    }
+
+    /**
+     * @return how many times the current position has occurred
+     */
+    int getRepetitions() {
+        return repetitions;
+    }
+
     private void spamMoves(Move move) {
         ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
         node.put("lm", move == null ? "" : move.toString());
@@ -1401,12 +1710,59 @@ public class MoleGame implements Runnable {
 
     public void spamNode(String type, ObjectNode node) {
         node.put("source", title);
-        try {
-            for (MolePlayer player : getAllPlayers()) if (!player.away) player.user.tell(type,node);
-        } catch (ConcurrentModificationException oops) { //dunno how exactly this happens...
-            log(oops.getMessage());
+        JsonNode frame = MoleServ.encode(node); //encoded once for every recipient
+        for (MoleUser user : audience.subscribers()) user.tell(type, frame, title);
+    }
+
+    /**
+     * Sends a change to the game's state. Clients following deltas get a numbered patch
+     * ({"source", "seq", "event", "patch"}) and ask for the whole game with "update" when a number is skipped;
+     * the rest get the legacy message (built only if anyone needs it).
+     *
+     * @param event      what changed (start, roster, phase, votes, move)
+     * @param patch      the changed state
+     * @param legacyType the message type sent before deltas
+     * @param legacy     its payload
+     */
+    public void spamDelta(String event, JsonNode patch, String legacyType, Supplier<ObjectNode> legacy) {
+        synchronized (deltaLock) { //keeps the numbers in order
+            ObjectNode delta = MoleServ.OBJ_MAPPER.createObjectNode();
+            delta.put("source", title);
+            delta.put("seq", ++seq);
+            delta.put("event", event);
+            delta.set("patch", patch);
+            JsonNode deltaFrame = MoleServ.encode(delta), legacyFrame = null;
+            for (MoleUser user : audience.subscribers()) {
+                if (user.deltas) user.tell(MSG_DELTA, deltaFrame, title);
+                else {
+                    if (legacyFrame == null) {
+                        ObjectNode node = legacy.get(); node.put("source", title);
+                        legacyFrame = MoleServ.encode(node);
+                    }
+                    user.tell(legacyType, legacyFrame, title);
+                }
+            }
         }
-        for (MoleUser user : observers) user.tell(type, node);
+    }
+
+
+    /**
+     * Sends to the game's observers and to anyone watching a player via obs_player, but not to the players
+     */
+    public void spamObservers(String type, ObjectNode node) {
+        node.put("source", title);
+        JsonNode frame = MoleServ.encode(node);
+        for (MoleUser user : observers.subscribers()) user.tell(type, frame, title);
+        for (MolePlayer player : getAllPlayers()) player.user.tellObservers(type, frame, title);
+    }
+
+    /**
+     * @return whether anyone is watching (see {@link #spamObservers})
+     */
+    boolean hasAudience() {
+        if (!observers.isEmpty()) return true;
+        for (MolePlayer player : getAllPlayers()) if (player.user.hasObservers()) return true;
+        return false;
     }
 
     private Color nextGUIColor() {
@@ -1436,6 +1792,7 @@ public class MoleGame implements Runnable {
         options.put("mole_bomb",moleBomb);
         options.put("inspector_role",inspecting);
         options.put("casual",casual);
+        options.put("vote_policy",votePolicy.name().toLowerCase());
         return options;
     }
 
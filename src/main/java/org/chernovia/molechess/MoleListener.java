@@ -1,5 +1,7 @@
 package org.chernovia.molechess;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,5 +20,5 @@ public interface MoleListener {
 
     void finished(MoleGame game);
 
-    void saveGame(String pgn, List<MolePlayer> whiteTeam, List<MolePlayer> blackTeam, int winner);
+    void saveGame(String pgn, List<MolePlayer> whiteTeam, List<MolePlayer> blackTeam, int winner, ObjectNode analysis);
 }
@@ -0,0 +1,136 @@
+package org.chernovia.molechess;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.move.Move;
+import org.chernovia.lib.chess.EngineResult;
+import org.chernovia.lib.chess.EngineService;
+import org.chernovia.lib.chess.EngineSession;
+import org.chernovia.lib.chess.PolyglotBook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans a team's AI votes from one MultiPV search: each bot gets its own candidate move,
+ * and a mole bot picks a plausible but inferior one.
+ */
+public class MolePlanner {
+
+    static int EXTRA_LINES = 2; //spare candidates for the mole to choose from
+    static final AtomicLong PONDER_HITS = new AtomicLong(0), PONDER_MISSES = new AtomicLong(0);
+    static final AtomicLong FALLBACKS = new AtomicLong(0);
+    static final AtomicLong BOOK_TURNS = new AtomicLong(0); //team searches the opening book made unnecessary
+
+    /**
+     * How far (in centipawns) below the best line a mole bot will stray, scaled from the gap
+     * between regular and mole bot strength
+     */
+    static int moleWindow() {
+        return Math.max(50, (MoleServ.STOCK_STRENGTH - MoleServ.STOCK_MOLE_STRENGTH) / 4);
+    }
+
+    /**
+     * Starts the team's search and hands out votes when it completes
+     *
+     * @param bots     AI players on the side to move
+     * @param fen      Position string
+     * @param t        search time in milliseconds
+     * @param deadline time (ms) by which the votes must be cast
+     * @return the pending search (cancel to withdraw it)
+     */
+    public static CompletableFuture<EngineResult> plan(List<MolePlayer> bots, String fen, int t, long deadline) {
+        return plan(bots, fen, search(bots.size(), fen, t, deadline, false));
+    }
+
+    /**
+     * As above, but searching on the game's own engine session when it has one
+     */
+    public static CompletableFuture<EngineResult> plan(List<MolePlayer> bots, EngineSession session, String fen,
+                                                       int t, long deadline) {
+        if (session == null || !session.isOpen() || MoleServ.STOCK_SERVICE == null) return plan(bots, fen, t, deadline);
+        return plan(bots, fen, MoleServ.STOCK_SERVICE.analyze(session, fen, MoleServ.STOCK_STRENGTH, t,
+                bots.size() + EXTRA_LINES, deadline));
+    }
+
+    /**
+     * Hands out votes from an already requested (e.g. pondered) search, or random legal moves
+     * if the search fails, so a broken engine never stalls the turn
+     */
+    public static CompletableFuture<EngineResult> plan(List<MolePlayer> bots, String fen,
+                                                       CompletableFuture<EngineResult> search) {
+        search.whenComplete((result, err) -> {
+            if (err == null) assign(bots, result);
+            else if (!(err instanceof CancellationException)) {
+                MoleServ.log("Team analysis failed: " + err);
+                fallback(bots, fen);
+            }
+        });
+        return search;
+    }
+
+    /**
+     * Votes book moves for every bot, each picked at its own strength
+     *
+     * @return false (voting nothing) if there's no book or the position is out of it
+     */
+    public static boolean playBook(List<MolePlayer> bots, String fen) {
+        if (MoleServ.BOOK == null) return false;
+        List<PolyglotBook.Entry> moves = MoleServ.BOOK.lookup(fen);
+        if (moves.isEmpty()) return false;
+        for (MolePlayer bot : bots) {
+            bot.newStockMove(PolyglotBook.pick(moves, bot.role == MolePlayer.ROLE.MOLE ?
+                    MoleServ.STOCK_MOLE_STRENGTH : MoleServ.STOCK_STRENGTH));
+        }
+        BOOK_TURNS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Requests the search a team of the given number of bots needs
+     *
+     * @param speculative whether this is pondering ahead of the team's turn
+     */
+    public static CompletableFuture<EngineResult> search(int bots, String fen, int t, long deadline, boolean speculative) {
+        if (MoleServ.STOCK_SERVICE == null || !MoleServ.STOCK_SERVICE.isAvailable()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No engine available"));
+        }
+        return MoleServ.STOCK_SERVICE.analyze(fen, MoleServ.STOCK_STRENGTH, t, bots + EXTRA_LINES, deadline,
+                speculative ? EngineService.PRIORITY.SPECULATIVE : EngineService.PRIORITY.LIVE);
+    }
+
+    private static void fallback(List<MolePlayer> bots, String fen) {
+        Board board = new Board(); board.loadFromFen(fen);
+        List<Move> moves = board.legalMoves();
+        if (moves.isEmpty()) return;
+        for (MolePlayer bot : bots) {
+            FALLBACKS.incrementAndGet();
+            bot.newStockMove(moves.get((int) (Math.random() * moves.size())).toString().toLowerCase());
+        }
+    }
+
+    private static void assign(List<MolePlayer> bots, EngineResult result) {
+        List<EngineResult.Line> lines = result.lines;
+        if (lines.isEmpty()) lines = List.of(new EngineResult.Line(result.bestMove, 0, false));
+        int next = 0;
+        for (MolePlayer bot : bots) {
+            if (bot.role == MolePlayer.ROLE.MOLE) bot.newStockMove(pickInferior(lines).move);
+            else bot.newStockMove(lines.get(next++ % lines.size()).move);
+        }
+    }
+
+    private static EngineResult.Line pickInferior(List<EngineResult.Line> lines) {
+        if (lines.size() < 2) return lines.get(0);
+        int best = lines.get(0).centipawns();
+        List<EngineResult.Line> plausible = new ArrayList<>();
+        for (EngineResult.Line line : lines.subList(1, lines.size())) {
+            if (best - line.centipawns() <= moleWindow()) plausible.add(line);
+        }
+        if (plausible.isEmpty()) return lines.get(1);
+        Collections.shuffle(plausible);
+        return plausible.get(0);
+    }
+}
@@ -1,5 +1,6 @@
 package org.chernovia.molechess;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.bhlangonijr.chesslib.PieceType;
 import com.github.bhlangonijr.chesslib.move.Move;
@@ -28,6 +29,10 @@ public class MolePlayer implements StockListener {
     MolePlayer vote = null;
     ROLE role = ROLE.PLAYER;
     Color guiColor;
+    private ObjectNode json; //last toJSON, reused until something it shows changes
+    private long jsonKey;
+    private MolePlayer jsonVote;
+    private JsonNode jsonUser;
 
     //TODO: fix color assignment bug when player rejoins
     public MolePlayer(MoleUser usr, MoleGame g, int c, Color c2) {
@@ -51,7 +56,14 @@ public class MolePlayer implements StockListener {
         return role == ROLE.MOLE && game.getPhase() == MoleGame.GAME_PHASE.VOTING && game.getTeams().get(color).voteCount > 0;
     }
 
-    public ObjectNode toJSON() {
+    public synchronized ObjectNode toJSON() {
+        JsonNode userNode = user.toJSON(true);
+        long key = jsonKey();
+        if (json != null && key == jsonKey && vote == jsonVote && userNode == jsonUser) {
+            SnapshotCache.hit(SnapshotCache.KIND.PLAYER); return json;
+        }
+        SnapshotCache.miss(SnapshotCache.KIND.PLAYER);
+        jsonKey = key; jsonVote = vote; jsonUser = userNode;
         ObjectNode obj = MoleServ.OBJ_MAPPER.createObjectNode();
         obj.put("score", score);
         obj.put("game_col", color);
@@ -60,17 +72,21 @@ public class MolePlayer implements StockListener {
         obj.put("kicked", votedOff); //either from being the mole or inactivity
         obj.put("kickable", skipped >= game.getKickFlag());
         obj.put("votename",vote == null ? "undecided" : vote.user.name);
-        obj.set("user", user.toJSON(true));
+        obj.set("user", userNode);
+        json = obj;
         return obj;
     }
 
-    private String rgbToHex(int r, int g, int b) {
-        return String.format("#%02x%02x%02x", r, g, b).toUpperCase();
+    /**
+     * @return the score, color and flags shown by toJSON, packed into a long
+     */
+    private long jsonKey() {
+        return (long) score << 32 | (color + 1) << 3 | (away ? 4 : 0) | (votedOff ? 2 : 0) |
+                (skipped >= game.getKickFlag() ? 1 : 0);
     }
 
-    public void analyzePosition(String fen, int t) {
-        new StockThread(this, MoleServ.STOCK_PATH, fen, t,
-                role == ROLE.PLAYER ? MoleServ.STOCK_STRENGTH : MoleServ.STOCK_MOLE_STRENGTH).start();
+    private String rgbToHex(int r, int g, int b) {
+        return String.format("#%02x%02x%02x", r, g, b).toUpperCase();
     }
 
     @Override
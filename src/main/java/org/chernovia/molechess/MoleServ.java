@@ -6,6 +6,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.databind.util.RawValue;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
@@ -13,6 +15,11 @@ import com.google.firebase.messaging.FirebaseMessaging;
 import com.google.firebase.messaging.FirebaseMessagingException;
 import com.google.firebase.messaging.Message;
 import com.google.firebase.messaging.Notification;
+import org.chernovia.lib.chess.AnalysisCache;
+import org.chernovia.lib.chess.EnginePool;
+import org.chernovia.lib.chess.EngineService;
+import org.chernovia.lib.chess.JavaEngine;
+import org.chernovia.lib.chess.PolyglotBook;
 import org.chernovia.lib.lichess.LichessSDK;
 import org.chernovia.lib.zugserv.ConnListener;
 import org.chernovia.lib.zugserv.Connection;
@@ -37,7 +44,6 @@ import java.util.stream.Stream;
 /* TODO:
 handle draws
 ai voting
-50 move rule draws
 ~clarify observing, empty/pregame board timeouts
 ~Double Mole/Inspector/Takebacker/Captain Role?
 
@@ -62,9 +68,19 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
     static final int MAX_STR_LEN = 30;
     static String TEST_TYPE = "";
     static String LOG_PATH = "%h/molechess/logs/";
+    static String ANALYSIS_PATH = System.getProperty("user.home") + "/molechess/analysis/";
     static String STOCK_PATH = "stockfish/stockfish";
     static int STOCK_STRENGTH = 2000, STOCK_MOLE_STRENGTH = 1500;
+    static int STOCK_THREADS = 1, STOCK_HASH = 25;
+    static int STOCK_QUEUE = 256, STOCK_CACHE_MB = 16;
+    static int STOCK_SESSIONS = 8, STOCK_SESSION_HASH = 64; //per-game engines with a warm hash
+    static int LIGHT_ELO = 1600; //searches at or below this strength use the in-process engine
+    static int PONDER_WIDTH = 2; //candidate moves pondered per turn
+    static EngineService STOCK_SERVICE;
+    static PolyglotBook BOOK; //null without -book
     private final Vector<MoleUser> users = new Vector<>();
+    private final Topic<MoleUser> lobby = Topic.open(Topic.LOBBY, "lobby", new MoleUser[0]); //the logged in users
+    private final LobbyIndex lobbyIndex = new LobbyIndex();
     private final ConcurrentHashMap<String, MoleGame> games = new ConcurrentHashMap<>();
     private ZugServ serv;
     private int purgeFreq = 30, maxUserGames = 3, defMoveTime = 60;
@@ -73,6 +89,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
     private boolean noOauth = false;
     private final MoleBase moleBase;
     private final MoleDisco moleDisco;
+    private final MoleAnalyzer analyzer; //null without a database
 
     public static void main(String[] args) {
         new MoleServ(5555, args).start();
@@ -85,6 +102,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         String[] path = parser.getArgumentValue("stockpath");
         if (path != null) STOCK_PATH = path[0];
         log("Stock Path: " + STOCK_PATH);
+        startEngines(parser);
         path = parser.getArgumentValue("logpath");
         if (path != null) LOG_PATH = path[0];
         log("Log Path: " + LOG_PATH);
@@ -110,6 +128,22 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         }
         createPlayersTableIfNotExists();
         createGameTableIfNotExist();
+        createAnalysisTableIfNotExist();
+        String[] outQueue = parser.getArgumentValue("outqueue"); //unsent messages per connection
+        if (outQueue != null) Outbox.CAPACITY = Integer.parseInt(outQueue[0]);
+        String[] overflow = parser.getArgumentValue("overflow"); //drop or disconnect
+        if (overflow != null) Outbox.POLICY = Outbox.OVERFLOW.valueOf(overflow[0].toUpperCase());
+        String[] writers = parser.getArgumentValue("writers");
+        if (writers != null) Outbox.WRITERS = Integer.parseInt(writers[0]);
+        String[] batchWindow = parser.getArgumentValue("batchwindow"); //ms
+        if (batchWindow != null) Outbox.BATCH_WINDOW = Integer.parseInt(batchWindow[0]);
+        String[] analysisPath = parser.getArgumentValue("analysispath"); //journal of games awaiting analysis
+        if (analysisPath != null) ANALYSIS_PATH = analysisPath[0];
+        String[] analysisTime = parser.getArgumentValue("analysistime"); //ms per position, 0 disables analysis
+        if (analysisTime != null) MoleAnalyzer.SEARCH_TIME = Integer.parseInt(analysisTime[0]);
+        if (dbuser != null && dbpass != null && MoleAnalyzer.SEARCH_TIME > 0) {
+            analyzer = new MoleAnalyzer(moleBase, ANALYSIS_PATH);
+        } else analyzer = null;
 
         InputStream serviceAccount = MoleServ.class.getResourceAsStream("/eek/service-account.json");
         try {
@@ -121,6 +155,34 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
 
     }
 
+    private void startEngines(CommandLineParser parser) {
+        String[] poolSize = parser.getArgumentValue("stockpool");
+        String[] slots = parser.getArgumentValue("stockslots"); //concurrent searches (default: spare cores / threads)
+        String[] cacheSize = parser.getArgumentValue("stockcache");
+        if (cacheSize != null) STOCK_CACHE_MB = Integer.parseInt(cacheSize[0]);
+        int engines = EnginePool.defaultSize(poolSize != null ? Integer.parseInt(poolSize[0]) : 0);
+        int searchSlots = EngineService.defaultSlots(slots != null ? Integer.parseInt(slots[0]) : 0, STOCK_THREADS);
+        STOCK_SERVICE = new EngineService(new EnginePool(STOCK_PATH, engines, STOCK_THREADS, STOCK_HASH),
+                searchSlots, STOCK_QUEUE, STOCK_CACHE_MB > 0 ? new AnalysisCache(STOCK_CACHE_MB * 1024L * 1024L) : null);
+        String[] lightElo = parser.getArgumentValue("lightelo"); //0 only uses it without Stockfish
+        if (lightElo != null) LIGHT_ELO = Integer.parseInt(lightElo[0]);
+        STOCK_SERVICE.setLightPool(new EnginePool(JavaEngine::new, null, searchSlots, 1, 0), LIGHT_ELO);
+        String[] ponderBudget = parser.getArgumentValue("ponderbudget"); //0 disables pondering
+        STOCK_SERVICE.setSpeculativeBudget(ponderBudget != null ? Integer.parseInt(ponderBudget[0]) :
+                Math.max(1, engines / 2));
+        String[] sessions = parser.getArgumentValue("sessions"); //0 disables per-game sessions
+        if (sessions != null) STOCK_SESSIONS = Integer.parseInt(sessions[0]);
+        STOCK_SERVICE.setSessionLimits(STOCK_SESSIONS, STOCK_SESSION_HASH);
+        String[] book = parser.getArgumentValue("book");
+        String[] bookKeys = parser.getArgumentValue("bookkeys"); //a Polyglot Random64 table, instead of the bundled one
+        if (book != null) try {
+            BOOK = bookKeys != null ? new PolyglotBook(book[0], bookKeys[0]) : new PolyglotBook(book[0]);
+            log("Opening book: " + book[0] + " (" + BOOK.getSize() + " entries)");
+        } catch (IOException e) {
+            log(Level.WARNING, "Opening book disabled: " + e.getMessage());
+        }
+    }
+
     private void createPlayersTableIfNotExists() {
         moleBase.makeQuery(
                         "CREATE TABLE IF NOT EXISTS `players` (" +
@@ -170,14 +232,37 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
                 .ifPresent(MoleBase.MoleQuery::runUpdate);
     }
 
-    public void saveGame(final String pgn, final List<MolePlayer> whiteTeam, final List<MolePlayer> blackTeam, final int winner) {
+    private void createAnalysisTableIfNotExist() {
+        moleBase.makeQuery(
+                        "CREATE TABLE IF NOT EXISTS `analysis` (" +
+                                "  `Id` INT NOT NULL AUTO_INCREMENT," +
+                                "  `Game` BINARY(16) NOT NULL," +
+                                "  `Player` VARCHAR(30) NOT NULL," +
+                                "  `Color` INT NOT NULL," +
+                                "  `Mole` INT NOT NULL," +
+                                "  `Votes` INT NOT NULL," +
+                                "  `AvgLoss` FLOAT NOT NULL," +
+                                "  `Sabotage` FLOAT NULL," +
+                                "  PRIMARY KEY (`Id`)," +
+                                "  INDEX `AnalysisGameFK_idx` (`Game` ASC)," +
+                                "  CONSTRAINT `AnalysisGameFK`" +
+                                "  FOREIGN KEY (`Game`)" +
+                                "  REFERENCES `games` (`Id`)" +
+                                "  ON DELETE CASCADE" +
+                                "  ON UPDATE CASCADE" +
+                                ")DEFAULT CHARSET = utf8;")
+                .ifPresent(MoleBase.MoleQuery::runUpdate);
+    }
+
+    public void saveGame(final String pgn, final List<MolePlayer> whiteTeam, final List<MolePlayer> blackTeam, final int winner,
+                         final ObjectNode analysis) {
         final String gameID = UUID.randomUUID().toString().substring(0, 16);
-        moleBase.makeQuery("INSERT INTO `games` (`Id`, `Date`, `PGN`, `Winner`) VALUES (?, CURRENT_TIMESTAMP, ?, ?)")
-                .ifPresent(query -> query.runUpdate(statement -> {
+        final boolean saved = moleBase.makeQuery("INSERT INTO `games` (`Id`, `Date`, `PGN`, `Winner`) VALUES (?, CURRENT_TIMESTAMP, ?, ?)")
+                .map(query -> query.runUpdate(statement -> {
                     statement.setString(1, gameID);
                     statement.setString(2, pgn);
                     statement.setInt(3, winner);
-                }));
+                })).orElse(false);
         final List<MolePlayer> allPlayers = Stream.concat(whiteTeam.stream(), blackTeam.stream())
                 .filter(p -> !p.ai).collect(Collectors.toList());
         allPlayers.stream()
@@ -197,6 +282,10 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
                         }
                     }));
                 });
+        if (analyzer != null && analysis != null) { //its results refer to the game's row
+            if (saved) analyzer.queue(gameID, analysis);
+            else log(Level.WARNING, "Game not saved, skipping analysis: " + gameID);
+        }
     }
 
     private void addUserData(MoleUser user) {
@@ -323,6 +412,23 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
             if (user.isActiveUser()) usersNode.add(user.toJSON(true));
         }
         node.set("users", usersNode);
+        if (STOCK_SERVICE != null) node.set("engines", STOCK_SERVICE.toJSON());
+        ObjectNode ponderNode = OBJ_MAPPER.createObjectNode();
+        ponderNode.put("hits", MolePlanner.PONDER_HITS.get());
+        ponderNode.put("misses", MolePlanner.PONDER_MISSES.get());
+        node.set("ponder", ponderNode);
+        node.put("fallback_moves", MolePlanner.FALLBACKS.get()); //random AI votes while no engine answered
+        if (analyzer != null) node.set("analysis", analyzer.toJSON());
+        node.set("snapshots", SnapshotCache.toJSON());
+        node.set("outboxes", Outbox.toJSON());
+        node.set("topics", Topic.toJSON());
+        node.set("lobby", lobbyIndex.toJSON());
+        node.set("wire", WireFormat.toJSON());
+        if (BOOK != null) {
+            ObjectNode bookNode = BOOK.toJSON();
+            bookNode.put("searches_saved", MolePlanner.BOOK_TURNS.get());
+            node.set("book", bookNode);
+        }
         return node;
     }
 
@@ -336,31 +442,18 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         return null;
     }
 
+    /**
+     * Tells a connection that may not have a user yet, via its queue so it's in the connection's encoding
+     */
+    private void tell(Connection conn, String type, String msg) {
+        Outbox.of(conn).offer(type, new TextNode(msg), ZugServ.MSG_SERV);
+    }
+
     private MoleUser getUser(Connection conn) {
         for (MoleUser user : users) if (user.sameConnection(conn)) return user;
         return null;
     }
 
-    private ArrayNode getAllGames(boolean deepCopy) {
-        try {
-            ArrayNode gameObj = OBJ_MAPPER.createArrayNode();
-            for (Map.Entry<String, MoleGame> entry : games.entrySet()) {
-                MoleGame game = entry.getValue();
-                if (deepCopy) {
-                    gameObj.add(game.toJSON(false));
-                } else {
-                    ObjectNode node = OBJ_MAPPER.createObjectNode();
-                    node.put("title", game.getTitle());
-                    gameObj.add(node);
-                }
-            }
-            return gameObj;
-        } catch (ConcurrentModificationException fuck) {
-            log(Level.SEVERE, fuck.getMessage());
-            return null;
-        }
-    }
-
     private boolean validString(String str) {
         boolean valid = false;
         if (str.length() > 0 && str.length() < MAX_STR_LEN) {
@@ -400,6 +493,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         MoleUser user = getUserByName(name);
         if (user != null) {
             user.addObserver(conn);
+            for (MoleGame game : games.values()) game.watcherAdded(user, conn);
             user.tell("Observer added");
         }
     }
@@ -410,7 +504,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
             JsonNode msgNode = OBJ_MAPPER.readTree(msg);
             JsonNode typeNode = msgNode.get("type"), dataNode = msgNode.get("data");
             if (typeNode == null || dataNode == null) {
-                conn.tell(ZugServ.MSG_ERR, "Error: Bad Data(null)");
+                tell(conn, ZugServ.MSG_ERR, "Error: Bad Data(null)");
                 return;
             }
             String typeTxt = typeNode.asText(), dataTxt = dataNode.asText();
@@ -425,13 +519,21 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
                 logout(user);
             } else if (typeTxt.equals("obs_player")) { //useful for streaming
                 handleObs(conn,dataTxt);
+            } else if (typeTxt.equals("batch")) { //newer clients: see Outbox
+                Outbox.of(conn).setBatching(dataNode.asBoolean(true));
+            } else if (typeTxt.equals(WireFormat.MSG_ENCODING)) { //"json" or "smile": see WireFormat
+                WireFormat format = WireFormat.parse(dataTxt);
+                if (format == null) tell(conn, ZugServ.MSG_ERR, "Unknown encoding: " + dataTxt);
+                else Outbox.of(conn).setFormat(format);
             } else if (user == null) {
-                conn.tell("no_log", "Please log in");
+                tell(conn, "no_log", "Please log in");
             } else if (typeTxt.equals("push_token")) { //for mobile
                 JsonNode token = dataNode.get("token"); if (token != null) user.pushToken = token.asText();
                 user.notifications = dataNode.get("notifications");
             } else if (typeTxt.equals("notify")) { //useful for streaming
                 user.notifications = dataNode;
+            } else if (typeTxt.equals("deltas")) { //newer clients: see MoleGame.spamDelta
+                user.deltas = dataNode.asBoolean(true);
             } else if (!user.newMessage(5,10000)) { //TODO: maybe use conn and not user for spam protection
                 user.tell("spam","Message not sent (spam)");
             } else if (typeTxt.equals("newgame")) {
@@ -440,6 +542,8 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
                 JsonNode titleNode = dataNode.get("game");
                 String title = titleNode == null || titleNode.isNull() ? "Untitled" : titleNode.asText();
                 newGame(user,title,color); //else user.tell(ZugServ.MSG_ERR, "Ruhoh: Invalid Data!");
+            } else if (typeTxt.equals("games")) { //the whole game list (as a delta for delta clients)
+                updateGameList(user);
             } else if (typeTxt.equals("top")) {
                 getTopPlayers(Integer.parseInt(dataTxt)).ifPresent(it -> user.tell("top", it));
             } else if (typeTxt.equals("history")) {
@@ -505,7 +609,8 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         else if (users.contains(user)) {
             user.tell("Goodbye!");
             purgeUser(user);
-            users.remove(user);
+            users.remove(user); lobby.unsubscribe(user);
+            user.removeObservers();
         }
         else user.tell("You're not logged in!");
     }
@@ -563,10 +668,10 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
             setGameOptions(user,game,data);
         }
         else if (cmd.equalsIgnoreCase("get_opt")) {
-            user.tell("options", game.getGameOptions());
+            user.tell("options", game.getGameOptions(), game.getTitle());
         }
-        else if (cmd.equalsIgnoreCase("update")) {
-            user.tell(MSG_GAME_UPDATE, game.toJSON(true));
+        else if (cmd.equalsIgnoreCase("update")) { //also how delta clients resync
+            user.tell(MSG_GAME_UPDATE, game.toJSON(true), game.getTitle());
         }
         else {
             user.tell("Unknown game command: " + cmd); return false;
@@ -607,6 +712,9 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
 
         JsonNode causal = data.get("casual"); //log("Casual: " + causal);
         if (causal != null) game.setCasual(causal.asBoolean());
+
+        JsonNode votePolicy = data.get("vote_policy");
+        if (votePolicy != null) game.setVotePolicy(votePolicy.asText());
     }
 
     private void broadcast(MoleGame game, ObjectNode node) {
@@ -661,11 +769,16 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
     }
 
     private void spam(String type, JsonNode node, MoleUser exclude) {
-        for (MoleUser user : this.users) if (!user.equals(exclude)) user.tell(type, node);
+        JsonNode frame = encode(node);
+        for (MoleUser user : lobby.subscribers()) if (user != exclude) user.tell(type, frame, ZugServ.MSG_SERV);
     }
 
     private void updateGameList(MoleUser user) {
-        user.tell(MSG_GAMES_UPDATE, getAllGames(true));
+        synchronized (lobbyIndex) {
+            updateGames(); //brings the index up to date first
+            if (user.deltas) user.tell(LobbyIndex.MSG_DELTA, lobbyIndex.reset());
+            else user.tell(MSG_GAMES_UPDATE, lobbyIndex.list(), ZugServ.MSG_SERV);
+        }
     }
 
     private MoleUser handleRelogging(Connection conn, LichessAccountData data) {
@@ -673,7 +786,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
             MoleUser user = getUserByName(data.name);
             if (user != null) {
                 user.tell("disconnected","Multiple login detected, closing");
-                user.getConn().close();
+                user.closeConn();
                 user.setConn(conn);  user.lichessToken = data.oauth;
                 conn.setStatus(Connection.Status.STATUS_OK);
                 return user;
@@ -691,9 +804,9 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
             String name = token;
             if (validString(name)) {
                 addUser(new MoleUser(conn, token, name, 1600), "Test Login Successful: Welcome!");
-            } else conn.tell(ZugServ.MSG_ERR, "Ruhoh: Invalid Data!");
+            } else tell(conn, ZugServ.MSG_ERR, "Ruhoh: Invalid Data!");
         } else if (token == null) {
-            conn.tell(ZugServ.MSG_ERR, "Login Error: Missing Oauth Token");
+            tell(conn, ZugServ.MSG_ERR, "Login Error: Missing Oauth Token");
         } else {
             if (accountData.ok) {
                 conn.setHandle(accountData.name);
@@ -705,7 +818,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
                 }
             }
             else {
-                conn.tell(ZugServ.MSG_ERR, "Login Error: weird Lichess API result");
+                tell(conn, ZugServ.MSG_ERR, "Login Error: weird Lichess API result");
             }
         }
     }
@@ -745,9 +858,9 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         if (add) {
             if (getUserByName(user.name) != null) {
                 user.tell(ZugServ.MSG_ERR,"You're already logged in (possibly from another browser)");
-                user.getConn().close(); return;
+                user.closeConn(); return;
             }
-            users.add(user);
+            users.add(user); lobby.subscribe(user);
             addUserData(user);
             spam(ZugServ.MSG_SERV, "Welcome, " + user.name + "!", user);
         }
@@ -768,7 +881,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         if (user != null) {
             if (action.success) {
                 user.tell(action.message,game);
-                user.tell(MSG_GAME_UPDATE, game.toJSON(moves));
+                user.tell(MSG_GAME_UPDATE, game.toJSON(moves), game.getTitle());
             } else user.tell(ZugServ.MSG_ERR, action.message,game);
         }
     }
@@ -778,7 +891,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         if (action.success) {
             if (action.player != null) game.spam(action.message,action.player);
             else game.spam(action.message);
-            game.spamNode(MSG_GAME_UPDATE, game.toJSON(moves)); //updateObs(game,moves);
+            game.spamDelta("roster", game.rosterJSON(), MSG_GAME_UPDATE, () -> game.toJSON(moves)); //updateObs(game,moves);
         } else {
             game.spam(ZugServ.MSG_ERR, action.message);
         }
@@ -805,7 +918,8 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
 
     @Override
     public void started(MoleGame game) {
-        game.spamNode(MSG_GAME_UPDATE, game.toJSON(true));
+        ObjectNode node = game.toJSON(true);
+        game.spamDelta("start", node, MSG_GAME_UPDATE, () -> node);
         updateGames();
         moleDisco.startGame(game.getTitle());
         for (MolePlayer player : game.getAllPlayers()) {
@@ -825,6 +939,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
 
     @Override
     public void connected(Connection conn) {
+        Outbox.open(conn);
     }
 
     @Override
@@ -832,6 +947,7 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         MoleUser user = getUser(conn);
         if (user != null) purgeUser(user);
         conn.setStatus(Connection.Status.STATUS_DISCONNECTED);
+        Outbox.remove(conn);
     }
 
     public void purgeUser(MoleUser user) {
@@ -840,8 +956,20 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         }
     }
 
+    /**
+     * Tells the lobby which games have changed: a numbered delta for clients following them
+     * (who ask for the whole list with "games" when a number is skipped), the whole list for the rest
+     */
     private void updateGames() {
-        spam("games_update", getAllGames(true));
+        synchronized (lobbyIndex) { //keeps the versions in order
+            ObjectNode diff = lobbyIndex.update(games.values());
+            if (diff == null) return;
+            JsonNode deltaFrame = encode(diff);
+            for (MoleUser user : lobby.subscribers()) {
+                if (user.deltas) user.tell(LobbyIndex.MSG_DELTA, deltaFrame);
+                else user.tell(MSG_GAMES_UPDATE, lobbyIndex.list(), ZugServ.MSG_SERV);
+            }
+        }
     }
 
     public void run() {
@@ -860,6 +988,8 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
             }
         }
         serv.stopSrv();
+        if (analyzer != null) analyzer.shutdown();
+        if (STOCK_SERVICE != null) STOCK_SERVICE.shutdown();
         log("Finished main MoleServ loop");
     }
 
@@ -871,6 +1001,22 @@ public class MoleServ extends Thread implements ConnListener, MoleListener {
         LOGGER.log(level, msg + " (" + LocalDateTime.now() + ")");
     }
 
+    /**
+     * Serializes a broadcast's payload once: the returned node is written out verbatim by every connection
+     * it's sent to, instead of each one walking and encoding the whole tree again.
+     * The result can't be read or modified, so only use it for sending.
+     * Connections using another {@link WireFormat} share a single encoding of it in that format too.
+     */
+    public static JsonNode encode(JsonNode node) {
+        try {
+            String json = OBJ_MAPPER.writeValueAsString(node);
+            return OBJ_MAPPER.getNodeFactory().rawValueNode(new RawValue(new WireFormat.Encoded(node, json)));
+        } catch (JsonProcessingException e) {
+            log(Level.WARNING, "Couldn't encode broadcast: " + e.getMessage());
+            return node;
+        }
+    }
+
     public static List<String> loadRandomNames(final String filename) {
         List<String> names = new ArrayList<>();
         try {
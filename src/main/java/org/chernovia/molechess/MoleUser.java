@@ -13,12 +13,16 @@ public class MoleUser {
     String lichessToken, pushToken = "";
     long discoID = MoleUser.DISCO_UNKNOWN;
     JsonNode notifications = null;
+    boolean deltas = false; //gets game_delta patches instead of whole game updates
     String name;
     int blitzRating;
     private Connection conn;
     public MoleData data;
-    private ArrayList<Connection> observers = new ArrayList<>();
+    private volatile Topic<Connection> watchers; //obs_player connections, opened with the first one
     Deque<Long> messageStack = new ConcurrentLinkedDeque<>();
+    private JsonNode ratingJSON; //toJSON(true), reused until the ratings change
+    private int ratingBlitz, ratingValue;
+    private MoleData ratingData;
 
     public class MoleData {
         String about;
@@ -57,8 +61,17 @@ public class MoleUser {
         blitzRating = r;
     }
 
-    public void addObserver(Connection c) {
-        if (!observers.contains(c)) observers.add(c);
+    public synchronized void addObserver(Connection c) {
+        if (watchers == null) watchers = Topic.open(Topic.USER, name, new Connection[0]);
+        watchers.subscribe(c);
+    }
+
+    /**
+     * Drops the obs_player connections (on logout)
+     */
+    public synchronized void removeObservers() {
+        if (watchers != null) watchers.close();
+        watchers = null;
     }
 
     public void setData(int wins, int losses, int rating, String about) {
@@ -99,17 +112,67 @@ public class MoleUser {
     public void tell(String type, String msg, MoleGame game) {
         ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
         node.put("msg", msg);
-        node.put("source",game == null ? "serv" : game.getTitle());
-        tell(type,node);
+        String source = game == null ? ZugServ.MSG_SERV : game.getTitle();
+        node.put("source",source);
+        tell(type,node,source);
     }
+
+    /**
+     * Queues a message that's never superseded by a later one (see below)
+     */
     public void tell(String type, JsonNode node) {
-        if (this.conn != null) this.conn.tell(type, node); //TODO: check status?
-        for (Connection obs : observers) {
-            if (obs.getStatus() != Connection.Status.STATUS_DISCONNECTED) obs.tell(type,node);
+        tell(type, node, null);
+    }
+
+    /**
+     * Queues a message for this user's connection and observers (see {@link Outbox})
+     *
+     * @param source the game (or "serv") it's about, so unsent updates can be superseded (null if they can't)
+     */
+    public void tell(String type, JsonNode node, String source) {
+        if (this.conn != null) Outbox.of(conn).offer(type, node, source); //TODO: check status?
+        tellObservers(type, node, source);
+    }
+
+    /**
+     * Tells only the connections observing this user (see obs_player)
+     */
+    public void tellObservers(String type, JsonNode node, String source) {
+        Topic<Connection> w = watchers; if (w == null) return;
+        for (Connection obs : w.subscribers()) {
+            if (obs.getStatus() != Connection.Status.STATUS_DISCONNECTED) Outbox.of(obs).offer(type, node, source);
         }
     }
 
+    /**
+     * Closes the connection once everything already told to it has been sent
+     */
+    public void closeConn() {
+        if (conn != null) Outbox.of(conn).closeWhenSent();
+    }
+
+    public boolean hasObservers() {
+        Topic<Connection> w = watchers; if (w == null) return false;
+        for (Connection obs : w.subscribers()) if (obs.getStatus() != Connection.Status.STATUS_DISCONNECTED) return true;
+        return false;
+    }
+
     public JsonNode toJSON(boolean ratingOnly) {
+        return ratingOnly ? ratingJSON() : buildJSON(false);
+    }
+
+    private synchronized JsonNode ratingJSON() {
+        MoleData d = data; int rating = d == null ? 0 : d.rating;
+        if (ratingJSON != null && ratingBlitz == blitzRating && ratingData == d && ratingValue == rating) {
+            SnapshotCache.hit(SnapshotCache.KIND.USER); return ratingJSON;
+        }
+        SnapshotCache.miss(SnapshotCache.KIND.USER);
+        ratingBlitz = blitzRating; ratingData = d; ratingValue = rating;
+        ratingJSON = buildJSON(true);
+        return ratingJSON;
+    }
+
+    private JsonNode buildJSON(boolean ratingOnly) {
         ObjectNode obj = MoleServ.OBJ_MAPPER.createObjectNode();
         obj.put("name", this.name);
         obj.put("blitz", this.blitzRating);
@@ -0,0 +1,276 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.chernovia.lib.zugserv.Connection;
+import org.chernovia.lib.zugserv.ZugServ;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * A connection's outgoing messages, queued so that whoever is broadcasting never waits on a slow client.
+ * A small pool of writers sends them, a batch from one connection at a time.
+ * An unsent state update is replaced, where it stands in the queue, by a newer one of the same type and
+ * source that has all of its fields (so only a game's latest game_update, phase, etc. goes out, but a
+ * move's partial game_update never replaces a full one), and a full queue either drops its oldest
+ * chatter or gives up on the connection.
+ * Connections that ask for batching get whatever is queued within a short window as a single frame:
+ * {"type": "batch", "data": [{"type", "data"}, ...]}.
+ * Data is sent in the connection's {@link WireFormat}, as it was when the message was queued.
+ */
+public class Outbox implements Runnable {
+
+    enum OVERFLOW {
+        DROP, //drop the oldest droppable message, disconnecting only if there isn't one
+        DISCONNECT
+    }
+
+    static int CAPACITY = 256; //unsent messages per connection
+    static int WRITERS = 4;
+    static int BATCH = 32; //messages sent before letting other connections have the writer
+    static OVERFLOW POLICY = OVERFLOW.DROP;
+    static int BATCH_WINDOW = 15; //ms a batching connection's messages wait for company
+    static final String MSG_BATCH = "batch";
+    static final Set<String> COALESCED = Set.of(MoleServ.MSG_GAME_UPDATE, MoleServ.MSG_GAMES_UPDATE,
+            "phase", "votelist", "eval", "options");
+    static final Set<String> DROPPABLE = Set.of(ZugServ.MSG_SERV, "game_msg", "chat", "eval");
+
+    private static final ConcurrentHashMap<Connection, Outbox> OUTBOXES = new ConcurrentHashMap<>();
+    private static final Outbox CLOSED = new Outbox(null); //for connections without one: takes nothing
+    private static final AtomicLong DISCONNECTS = new AtomicLong(0);
+    private static ScheduledExecutorService writers;
+
+    private static class Message {
+        final String type, key;
+        final WireFormat format;
+        JsonNode node; //replaced by newer updates until sent
+
+        Message(String type, JsonNode node, String key, WireFormat format) {
+            this.type = type; this.node = node; this.key = key; this.format = format;
+        }
+    }
+
+    private final Connection conn;
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final HashMap<String, Message> unsent = new HashMap<>(); //coalesced messages by type and source
+    private boolean scheduled = false, closing = false, closed = false, batching = false;
+    private WireFormat format = WireFormat.JSON;
+    private long sent = 0, frames = 0, coalesced = 0, dropped = 0;
+
+    private Outbox(Connection conn) {
+        this.conn = conn;
+        if (conn == null) closed = true;
+    }
+
+    /**
+     * Gives a newly connected connection its queue
+     */
+    public static Outbox open(Connection conn) {
+        return OUTBOXES.computeIfAbsent(conn, Outbox::new);
+    }
+
+    /**
+     * @return the connection's queue, or one that discards everything if it's closed (or was never opened)
+     */
+    public static Outbox of(Connection conn) {
+        return OUTBOXES.getOrDefault(conn, CLOSED);
+    }
+
+    /**
+     * Discards a disconnected connection's queue
+     */
+    static void remove(Connection conn) {
+        Outbox outbox = OUTBOXES.remove(conn);
+        if (outbox != null) synchronized (outbox) {
+            outbox.closed = true; outbox.queue.clear(); outbox.unsent.clear();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService writers() {
+        if (writers == null) writers = Executors.newScheduledThreadPool(WRITERS, r -> {
+            Thread t = new Thread(r, "Outbox"); t.setDaemon(true); return t;
+        });
+        return writers;
+    }
+
+    /**
+     * @param source the game (or "serv") the message is about, for coalescing (null to never coalesce it)
+     */
+    public void offer(String type, JsonNode node, String source) {
+        synchronized (this) {
+            if (closed || closing) return;
+            Message message = new Message(type, node, source != null && COALESCED.contains(type) ? type + "|" + source : null, format);
+            if (message.key != null) {
+                Message previous = unsent.get(message.key);
+                if (previous != null && covers(node, previous.node)) {
+                    previous.node = node; coalesced++; return;
+                }
+                unsent.put(message.key, message); //any previous one still goes out, first
+            }
+            if (queue.size() >= CAPACITY && !makeRoom()) {
+                overflowed(); return;
+            }
+            queue.add(message);
+            if (scheduled) return;
+            scheduled = true;
+            if (batching) {
+                writers().schedule(this, BATCH_WINDOW, TimeUnit.MILLISECONDS); return;
+            }
+        }
+        writers().execute(this);
+    }
+
+    /**
+     * @return whether a newer payload has every field of an older one (so can replace it)
+     */
+    static boolean covers(JsonNode newer, JsonNode older) {
+        newer = WireFormat.unwrap(newer); older = WireFormat.unwrap(older);
+        if (!older.isObject()) return true;
+        if (!newer.isObject()) return false;
+        for (Iterator<String> it = older.fieldNames(); it.hasNext(); ) if (!newer.has(it.next())) return false;
+        return true;
+    }
+
+    /**
+     * @param batch whether to send messages queued within BATCH_WINDOW as one frame
+     */
+    public synchronized void setBatching(boolean batch) {
+        batching = batch;
+    }
+
+    /**
+     * Switches encoding, acknowledging with {"type": "encoding", "data": "json"|"smile"} in the old one,
+     * so the client knows that whatever follows is in the new one
+     */
+    synchronized void setFormat(WireFormat newFormat) {
+        offer(WireFormat.MSG_ENCODING, new TextNode(newFormat.name().toLowerCase()), ZugServ.MSG_SERV);
+        format = newFormat;
+    }
+
+    /**
+     * Closes the connection once everything already queued has been sent
+     */
+    void closeWhenSent() {
+        synchronized (this) {
+            if (closed) return;
+            closing = true;
+            if (scheduled) return;
+            scheduled = true;
+        }
+        writers().execute(this);
+    }
+
+    private boolean makeRoom() {
+        if (POLICY != OVERFLOW.DROP) return false;
+        for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            if (DROPPABLE.contains(message.type)) {
+                it.remove();
+                if (message.key != null) unsent.remove(message.key, message);
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void overflowed() {
+        closed = true; queue.clear(); unsent.clear();
+        OUTBOXES.remove(conn, this);
+        DISCONNECTS.incrementAndGet();
+        MoleServ.log(Level.WARNING, "Send queue overflow, disconnecting: " + conn.getHandle());
+        conn.close();
+    }
+
+    @Override
+    public void run() {
+        for (int n = 0; n < BATCH; ) {
+            ArrayDeque<Message> messages = new ArrayDeque<>();
+            synchronized (this) {
+                while (!closed && n < BATCH && !queue.isEmpty()
+                        && (messages.isEmpty() || batching && queue.peek().format == messages.peek().format)) {
+                    Message message = queue.poll(); n++;
+                    if (message.key != null) unsent.remove(message.key, message);
+                    messages.add(message);
+                }
+                if (messages.isEmpty()) {
+                    scheduled = false;
+                    if (closing && !closed) {
+                        closed = true; OUTBOXES.remove(conn, this);
+                        conn.close();
+                    }
+                    return;
+                }
+            }
+            try {
+                if (conn.getStatus() != Connection.Status.STATUS_DISCONNECTED) {
+                    Message first = messages.peek();
+                    if (messages.size() == 1) conn.tell(first.type, first.format.frame(first.node));
+                    else conn.tell(MSG_BATCH, first.format.frame(batch(messages)));
+                    synchronized (this) { sent += messages.size(); frames++; }
+                }
+            } catch (RuntimeException | JsonProcessingException e) {
+                MoleServ.log(Level.WARNING, "Send failed (" + conn.getHandle() + "): " + e.getMessage());
+            }
+        }
+        writers().execute(this); //still scheduled: let other connections have a turn
+    }
+
+    private static ArrayNode batch(Collection<Message> messages) {
+        ArrayNode array = MoleServ.OBJ_MAPPER.createArrayNode();
+        for (Message message : messages) {
+            ObjectNode node = array.addObject();
+            node.put("type", message.type);
+            node.set("data", message.node);
+        }
+        return array;
+    }
+
+    private synchronized ObjectNode connectionJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        node.put("handle", conn.getHandle());
+        node.put("depth", queue.size());
+        node.put("batching", batching);
+        node.put("format", format.name().toLowerCase());
+        node.put("sent", sent);
+        node.put("frames", frames);
+        node.put("coalesced", coalesced);
+        node.put("dropped", dropped);
+        return node;
+    }
+
+    public static ObjectNode toJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        ArrayNode connections = node.putArray("connections");
+        long queued = 0, sent = 0, frames = 0, dropped = 0, coalesced = 0;
+        for (Outbox outbox : OUTBOXES.values()) {
+            ObjectNode connNode = outbox.connectionJSON();
+            queued += connNode.get("depth").asLong();
+            sent += connNode.get("sent").asLong();
+            frames += connNode.get("frames").asLong();
+            dropped += connNode.get("dropped").asLong();
+            coalesced += connNode.get("coalesced").asLong();
+            connections.add(connNode);
+        }
+        node.put("queued", queued);
+        node.put("sent", sent);
+        node.put("frames", frames); //writes to the sockets: fewer than sent when batching
+        node.put("coalesced", coalesced);
+        node.put("dropped", dropped);
+        node.put("disconnects", DISCONNECTS.get());
+        return node;
+    }
+}
@@ -0,0 +1,128 @@
+package org.chernovia.molechess;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.PieceType;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything a ply's votes need to know about the position, worked out once when the position
+ * is reached: the legal moves, each one's SAN, and an index from UCI strings to moves.
+ */
+public class PositionContext {
+
+    private final List<Move> moves;
+    private final Map<String, Move> byUci = new HashMap<>();
+    private final Map<String, String> sans = new HashMap<>();
+
+    public PositionContext(Board board) {
+        moves = Collections.unmodifiableList(board.legalMoves());
+        Board auxBoard = board.clone();
+        for (Move move : moves) {
+            String uci = uci(move);
+            byUci.put(uci, move);
+            sans.put(uci, san(move, board, auxBoard));
+        }
+    }
+
+    /**
+     * @return the move's UCI string (lower case, as used for lookups)
+     */
+    public static String uci(Move move) {
+        return move.toString().toLowerCase();
+    }
+
+    public List<Move> getMoves() {
+        return moves;
+    }
+
+    public boolean isLegal(Move move) {
+        return byUci.containsKey(uci(move));
+    }
+
+    /**
+     * @return the SAN of a legal move, or null if the move isn't legal here
+     */
+    public String getSan(Move move) {
+        return sans.get(uci(move));
+    }
+
+    /**
+     * @param uci a move in UCI notation (any case)
+     * @return a new Move (with its SAN set) for each call, or null if the move isn't legal here
+     */
+    public Move getMove(String uci) {
+        Move move = byUci.get(uci.toLowerCase());
+        return move == null ? null : copy(move);
+    }
+
+    /**
+     * @return a fresh copy of a legal move with its SAN set (votes compare moves by identity)
+     */
+    public Move copy(Move move) {
+        Move copy = new Move(move.getFrom(), move.getTo(), move.getPromotion());
+        copy.setSan(getSan(move));
+        return copy;
+    }
+
+    private String san(Move move, Board board, Board auxBoard) {
+        auxBoard.doMove(move);
+        final String ending = !auxBoard.isKingAttacked() ? "" : auxBoard.isMated() ? "#" : "+";
+        auxBoard.undoMove();
+        Square from = move.getFrom(); Square to = move.getTo();
+        Piece piece = board.getPiece(from);
+        if (piece.equals(Piece.BLACK_KING) && from.equals(Square.E8)) {
+            if (to.equals(Square.G8)) {
+                return "O-O" + ending;
+            } else if (to.equals(Square.C8)) {
+                return "O-O-O" + ending;
+            }
+        } else if (piece.equals(Piece.WHITE_KING) && from.equals(Square.E1)) {
+            if (to.equals(Square.G1)) {
+                return "O-O" + ending;
+            } else if (to.equals(Square.C1)) {
+                return "O-O-O" + ending;
+            }
+        }
+        Piece target = board.getPiece(to);
+        final String takes = (target != Piece.NONE ||
+                (piece.getPieceType() == PieceType.PAWN && !from.getFile().equals(to.getFile()))) ? "x" : "";
+        final String promotion = move.getPromotion() != Piece.NONE ? "=" + move.getPromotion().getSanSymbol() : "";
+        final String fromStr = getFromString(board, piece, from, to).toLowerCase();
+        final String toStr = to.value().toLowerCase();
+        final String sanSymbol = (piece.getSanSymbol().equals("") && takes.equals("x") && fromStr.equals("")) ?
+                from.value().substring(0, 1).toLowerCase() : piece.getSanSymbol();
+        return sanSymbol + fromStr + takes + toStr + promotion + ending;
+    }
+
+    /**
+     * Disambiguates a move from the other legal moves of the same kind of piece to the same square
+     */
+    private String getFromString(Board board, Piece piece, Square from, Square to) {
+        if (piece.getPieceType() == PieceType.PAWN || piece.getPieceType() == PieceType.NONE) {
+            return "";
+        }
+        boolean conflict = false, conflictOnFile = false, conflictOnRank = false;
+        for (Move other : moves) {
+            if (other.getTo() != to || other.getFrom() == from || board.getPiece(other.getFrom()) != piece) continue;
+            conflict = true;
+            conflictOnFile |= other.getFrom().getFile() == from.getFile();
+            conflictOnRank |= other.getFrom().getRank() == from.getRank();
+        }
+        if (!conflict) {
+            return "";
+        } else if (conflictOnFile && conflictOnRank) {
+            return from.value();
+        } else if (conflictOnFile) {
+            return from.value().substring(1, 2);
+        } else {
+            return from.value().substring(0, 1);
+        }
+    }
+}
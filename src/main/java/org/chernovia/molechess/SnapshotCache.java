@@ -0,0 +1,54 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit counts for the memoized JSON of games and their parts. A fragment is rebuilt only when
+ * something it shows has changed, so an unchanged fragment keeps its identity and the fragments
+ * containing it can tell they're still current by comparing references.
+ */
+class SnapshotCache {
+
+    enum KIND {GAME, TEAM, PLAYER, USER, PLY}
+
+    private static final LongAdder[] HITS = new LongAdder[KIND.values().length];
+    private static final LongAdder[] MISSES = new LongAdder[KIND.values().length];
+
+    static {
+        for (int i = 0; i < HITS.length; i++) {
+            HITS[i] = new LongAdder(); MISSES[i] = new LongAdder();
+        }
+    }
+
+    static void hit(KIND kind) {
+        HITS[kind.ordinal()].increment();
+    }
+
+    static void miss(KIND kind) {
+        MISSES[kind.ordinal()].increment();
+    }
+
+    /**
+     * @return whether both lists hold the very same nodes, in the same order
+     */
+    static boolean same(List<?> nodes, List<?> previous) {
+        if (nodes.size() != previous.size()) return false;
+        for (int i = 0; i < nodes.size(); i++) if (nodes.get(i) != previous.get(i)) return false;
+        return true;
+    }
+
+    static ObjectNode toJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        for (KIND kind : KIND.values()) {
+            long hits = HITS[kind.ordinal()].sum(), misses = MISSES[kind.ordinal()].sum();
+            ObjectNode kindNode = node.putObject(kind.name().toLowerCase());
+            kindNode.put("hits", hits);
+            kindNode.put("misses", misses);
+            kindNode.put("hit_rate", hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,104 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A broadcast channel (the lobby, a game's audience and observers, a team, a user's obs_player watchers).
+ * Subscribers live in an array that's replaced on every change, so publishing is a plain loop over
+ * whatever array it started with: no allocation, no locking, and joins and parts can't break it.
+ */
+class Topic<T> {
+
+    static final String LOBBY = "lobby", GAME = "game", OBSERVERS = "observers", TEAM = "team", USER = "user";
+    private static final Set<Topic<?>> TOPICS = ConcurrentHashMap.newKeySet();
+
+    final String kind, name;
+    private volatile T[] subscribers;
+
+    /**
+     * @param none an empty array of the subscriber type
+     */
+    private Topic(String kind, String name, T[] none) {
+        this.kind = kind; this.name = name; subscribers = none;
+    }
+
+    static <T> Topic<T> open(String kind, String name, T[] none) {
+        Topic<T> topic = new Topic<>(kind, name, none);
+        TOPICS.add(topic);
+        return topic;
+    }
+
+    /**
+     * Stops counting the topic (its subscribers are dropped)
+     */
+    void close() {
+        TOPICS.remove(this);
+        synchronized (this) {
+            subscribers = Arrays.copyOf(subscribers, 0);
+        }
+    }
+
+    /**
+     * @return false if already subscribed
+     */
+    synchronized boolean subscribe(T subscriber) {
+        if (contains(subscriber)) return false;
+        T[] subs = Arrays.copyOf(subscribers, subscribers.length + 1);
+        subs[subs.length - 1] = subscriber;
+        subscribers = subs;
+        return true;
+    }
+
+    /**
+     * @return false if not subscribed
+     */
+    synchronized boolean unsubscribe(T subscriber) {
+        T[] subs = subscribers;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] == subscriber) {
+                T[] newSubs = Arrays.copyOf(subs, subs.length - 1);
+                System.arraycopy(subs, i + 1, newSubs, i, subs.length - i - 1);
+                subscribers = newSubs;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean contains(T subscriber) {
+        for (T sub : subscribers) if (sub == subscriber) return true;
+        return false;
+    }
+
+    /**
+     * @return the current subscribers (never modified, so safe to loop over while others join or part)
+     */
+    T[] subscribers() {
+        return subscribers;
+    }
+
+    int size() {
+        return subscribers.length;
+    }
+
+    boolean isEmpty() {
+        return subscribers.length == 0;
+    }
+
+    /**
+     * @return the number of open topics and subscriptions of each kind
+     */
+    static ObjectNode toJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        for (Topic<?> topic : TOPICS) {
+            ObjectNode kindNode = node.has(topic.kind) ? (ObjectNode) node.get(topic.kind) : node.putObject(topic.kind);
+            kindNode.put("topics", kindNode.path("topics").asInt() + 1);
+            kindNode.put("subscriptions", kindNode.path("subscriptions").asInt() + topic.size());
+        }
+        return node;
+    }
+}
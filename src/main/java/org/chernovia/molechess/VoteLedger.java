@@ -0,0 +1,105 @@
+package org.chernovia.molechess;
+
+import com.github.bhlangonijr.chesslib.move.Move;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One turn's move votes, tallied as they arrive: a count per move (keyed by its packed
+ * from/to/promotion) plus the number of votes and of players expected to vote.
+ */
+class VoteLedger {
+
+    /**
+     * How the played move is chosen from the votes
+     */
+    enum POLICY {
+        WEIGHTED, //each vote is equally likely to be picked (so a move's chance follows its votes)
+        PLURALITY, //the most voted move, ties broken at random
+        RANDOM //each voted move is equally likely, however many votes it got
+    }
+
+    private final HashMap<Integer, Integer> tally = new HashMap<>();
+    private int votes = 0, voters = 0;
+
+    /**
+     * @return from, to and promotion packed into an int
+     */
+    static int key(Move move) {
+        return move.getFrom().ordinal() | move.getTo().ordinal() << 7 | move.getPromotion().ordinal() << 14;
+    }
+
+    /**
+     * Starts a turn, counting the votes and voters already on the team
+     */
+    synchronized void reset(List<MolePlayer> team) {
+        tally.clear(); votes = 0; voters = 0;
+        for (MolePlayer player : team) {
+            if (player.isActive()) voters++;
+            if (player.move != null) add(player.move);
+        }
+    }
+
+    /**
+     * Sets (or with null, withdraws) a player's vote, replacing any previous one
+     */
+    synchronized void vote(MolePlayer player, Move move) {
+        if (player.move != null) remove(player.move);
+        player.move = move;
+        if (move != null) add(move);
+    }
+
+    private void add(Move move) {
+        tally.merge(key(move), 1, Integer::sum); votes++;
+    }
+
+    synchronized void remove(Move move) {
+        int key = key(move);
+        if (tally.containsKey(key)) {
+            tally.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null); votes--;
+        }
+    }
+
+    /**
+     * @return whether every expected voter has voted
+     */
+    synchronized boolean isComplete() {
+        return votes >= voters;
+    }
+
+    synchronized int getVotes() {
+        return votes;
+    }
+
+    /**
+     * @return the key of the chosen move, or -1 if there are no votes
+     */
+    synchronized int pick(POLICY policy) {
+        if (votes == 0) return -1;
+        switch (policy) {
+            case PLURALITY -> {
+                int best = -1, most = 0, ties = 0;
+                for (Map.Entry<Integer, Integer> entry : tally.entrySet()) {
+                    int n = entry.getValue();
+                    if (n > most) {
+                        most = n; best = entry.getKey(); ties = 1;
+                    } else if (n == most && Math.random() * ++ties < 1) best = entry.getKey();
+                }
+                return best;
+            }
+            case RANDOM -> {
+                int n = (int) (Math.random() * tally.size());
+                for (int key : tally.keySet()) if (n-- == 0) return key;
+            }
+            default -> {
+                int n = (int) (Math.random() * votes);
+                for (Map.Entry<Integer, Integer> entry : tally.entrySet()) {
+                    if ((n -= entry.getValue()) < 0) return entry.getKey();
+                }
+            }
+        }
+        return -1;
+    }
+}
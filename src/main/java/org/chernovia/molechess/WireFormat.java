@@ -0,0 +1,108 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How a connection's message data goes out: JSON text (the default), or Smile, Jackson's binary JSON,
+ * with back-references for repeated names and short strings (FENs, colors, player names).
+ * A Smile client's frames are still {"type", "data"}, but data is a base64 Smile document
+ * (a batch's data is one document holding the whole array).
+ * Broadcasts are encoded once per format: see {@link MoleServ#encode}.
+ */
+enum WireFormat {
+    JSON, SMILE;
+
+    static final String MSG_ENCODING = "encoding";
+    static final ObjectMapper SMILE_MAPPER = new ObjectMapper(SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES).build());
+    private static final LongAdder ENCODED = new LongAdder(), REUSED = new LongAdder(), BYTES = new LongAdder();
+
+    /**
+     * A broadcast's JSON, written once, plus its Smile, written when first asked for.
+     * Wrapped in a RawValue so it can be sent like any other node.
+     */
+    static class Encoded implements JsonSerializable {
+        final JsonNode node;
+        final String json;
+        private byte[] smile;
+
+        Encoded(JsonNode node, String json) {
+            this.node = node; this.json = json;
+        }
+
+        synchronized byte[] smile() throws JsonProcessingException {
+            if (smile != null) REUSED.increment();
+            else smile = SMILE_MAPPER.writeValueAsBytes(node);
+            return smile;
+        }
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            if (gen.canWriteBinaryNatively()) gen.writeTree(node); //not text, so the JSON's no use
+            else gen.writeRawValue(json);
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+                throws IOException {
+            serialize(gen, serializers);
+        }
+    }
+
+    static WireFormat parse(String name) {
+        for (WireFormat format : values()) if (format.name().equalsIgnoreCase(name)) return format;
+        return null;
+    }
+
+    /**
+     * @return the node as it should be sent in this format
+     */
+    JsonNode frame(JsonNode node) throws JsonProcessingException {
+        if (this == JSON) return node;
+        byte[] bytes;
+        Encoded encoded = encoded(node);
+        if (encoded != null) bytes = encoded.smile();
+        else bytes = SMILE_MAPPER.writeValueAsBytes(node);
+        ENCODED.increment(); BYTES.add(bytes.length);
+        return BinaryNode.valueOf(bytes);
+    }
+
+    /**
+     * @return the tree an encoded node was made from (or the node itself)
+     */
+    static JsonNode unwrap(JsonNode node) {
+        Encoded encoded = encoded(node);
+        return encoded != null ? encoded.node : node;
+    }
+
+    private static Encoded encoded(JsonNode node) {
+        if (node instanceof POJONode && ((POJONode) node).getPojo() instanceof RawValue) {
+            Object raw = ((RawValue) ((POJONode) node).getPojo()).rawValue();
+            if (raw instanceof Encoded) return (Encoded) raw;
+        }
+        return null;
+    }
+
+    static ObjectNode toJSON() {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        node.put("smile_frames", ENCODED.sum());
+        node.put("smile_reused", REUSED.sum()); //broadcasts already encoded for another connection
+        node.put("smile_bytes", BYTES.sum());
+        return node;
+    }
+}
@@ -0,0 +1,80 @@
+package org.chernovia.lib.chess;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfoRecordTest {
+
+    private static InfoRecord parse(String line) {
+        InfoRecord info = new InfoRecord();
+        assertTrue(info.parse(line, 0, line.length()), line);
+        return info;
+    }
+
+    @Test
+    void multiPvLine() {
+        InfoRecord info = parse("info depth 18 seldepth 24 multipv 3 score cp -37 nodes 1234567 nps 987654 hashfull 412 " +
+                "tbhits 0 time 1250 pv d2d4 d7d5 c2c4\n");
+        assertEquals(18, info.depth);
+        assertEquals(24, info.seldepth);
+        assertEquals(3, info.multipv);
+        assertTrue(info.hasScore);
+        assertFalse(info.mate);
+        assertEquals(-37, info.score);
+        assertEquals(-37, info.centipawns());
+        assertEquals(1234567, info.nodes);
+        assertEquals(987654, info.nps);
+        assertEquals(412, info.hashfull);
+        assertEquals(1250, info.time);
+        assertEquals("d2d4 d7d5 c2c4", info.pv());
+        assertEquals(3, info.pvLength());
+        assertEquals("d2d4", info.pvMove(0));
+        assertEquals("c2c4", info.pvMove(2));
+        assertNull(info.pvMove(3));
+    }
+
+    @Test
+    void mateBoundsAndWdl() {
+        InfoRecord info = parse("info depth 30 score mate -4 upperbound wdl 0 2 998 nodes 99 pv e1f1");
+        assertTrue(info.mate);
+        assertTrue(info.upperbound);
+        assertFalse(info.lowerbound);
+        assertEquals(-4, info.score);
+        assertEquals(-100000 + 4, info.centipawns());
+        assertEquals(99, info.nodes); //after the three wdl values
+        assertEquals(1, info.multipv);
+        assertTrue(parse("info depth 9 score cp 51 lowerbound pv e2e4").lowerbound);
+    }
+
+    @Test
+    void linesWithoutScoresOrPvs() {
+        InfoRecord info = parse("info depth 5 currmove e2e4 currmovenumber 1");
+        assertFalse(info.hasScore);
+        assertFalse(info.hasPv());
+        assertEquals("", info.pv());
+        assertEquals(0, info.pvLength());
+        info = parse("info string NNUE evaluation using nn.nnue pv not a pv");
+        assertFalse(info.hasPv());
+        assertEquals(0, info.depth);
+    }
+
+    @Test
+    void otherLinesAreRejected() {
+        InfoRecord info = new InfoRecord();
+        assertFalse(info.parse("bestmove e2e4 ponder e7e5", 0, 25));
+        assertFalse(info.parse("", 0, 0));
+        assertFalse(info.hasScore);
+    }
+
+    @Test
+    void parsesAPartOfTheText() {
+        String text = "bestmove a2a3\ninfo depth 7 score cp 12 pv g1f3 g8f6\nreadyok";
+        int from = text.indexOf("info"), to = text.indexOf('\n', from);
+        InfoRecord info = new InfoRecord();
+        assertTrue(info.parse(text, from, to));
+        assertEquals(7, info.depth);
+        assertEquals("g1f3 g8f6", info.pv());
+        assertEquals(2, info.pvLength());
+    }
+}
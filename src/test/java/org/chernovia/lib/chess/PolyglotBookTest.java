@@ -0,0 +1,116 @@
+package org.chernovia.lib.chess;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Hashing is checked against the Polyglot format's own test positions with the bundled Random64 table,
+ * and for its structure against a seeded table.
+ */
+class PolyglotBookTest {
+
+    static final String START = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    static final String AFTER_E4 = "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1";
+    static final String AFTER_F5 = "rnbqkbnr/ppp1p1pp/8/3pPp2/8/8/PPPP1PPP/RNBQKBNR w KQkq f6 0 3"; //1.e4 d5 2.e5 f5
+    static final String CASTLES = "r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1";
+
+    @TempDir
+    static Path dir;
+    static Path keysFile;
+    static long[] keys = new long[PolyglotBook.KEYS];
+
+    @BeforeAll
+    static void writeKeys() throws IOException {
+        SplittableRandom random = new SplittableRandom(781);
+        StringBuilder text = new StringBuilder("uint64 Random64[781] = {\n");
+        for (int i = 0; i < keys.length; i++) text.append(String.format("   0x%016X,%n", keys[i] = random.nextLong()));
+        keysFile = Files.writeString(dir.resolve("keys.txt"), text.append("};\n"));
+    }
+
+    /**
+     * @param entries {key, move, weight} triples
+     */
+    static PolyglotBook book(String name, long[]... entries) throws IOException {
+        Arrays.sort(entries, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        ByteBuffer bytes = ByteBuffer.allocate(entries.length * PolyglotBook.ENTRY_SIZE);
+        for (long[] entry : entries) {
+            bytes.putLong(entry[0]).putShort((short) entry[1]).putShort((short) entry[2]).putInt(0);
+        }
+        Path bin = Files.write(dir.resolve(name), bytes.array());
+        return new PolyglotBook(bin.toString(), keysFile.toString());
+    }
+
+    static int move(int from, int to) {
+        return from << 6 | to;
+    }
+
+    @Test
+    void startPositionKey() throws IOException {
+        assumeTrue(PolyglotBook.RANDOM64 != null, PolyglotBook.KEYS_RESOURCE + " isn't bundled");
+        PolyglotBook book = new PolyglotBook(Files.write(dir.resolve("none.bin"), new byte[0]).toString());
+        assertEquals(0x463b96181691fc9cL, book.key(START));
+        assertEquals(0x823c9b50fd114196L, book.key(AFTER_E4));
+        assertEquals(0x22a48b5a8e47ff78L, book.key(AFTER_F5));
+    }
+
+    @Test
+    void keyCombinesPiecesCastlingAndTurn() throws IOException {
+        long expected = 0;
+        int[] whiteBackRank = {7, 3, 5, 9, 11, 5, 3, 7}, blackBackRank = {6, 2, 4, 8, 10, 4, 2, 6}; //kind: 2 * piece + white
+        for (int file = 0; file < 8; file++) {
+            expected ^= keys[64 * whiteBackRank[file] + file] ^ keys[64 + 8 + file] //white pieces and pawns
+                    ^ keys[64 * blackBackRank[file] + 56 + file] ^ keys[48 + file];
+        }
+        expected ^= keys[768] ^ keys[769] ^ keys[770] ^ keys[771] ^ keys[780];
+        PolyglotBook book = book("empty.bin");
+        assertEquals(expected, book.key(START));
+        assertEquals(expected ^ keys[780], book.key(START.replace(" w ", " b ")));
+        assertEquals(expected ^ keys[768] ^ keys[771], book.key(START.replace("KQkq", "Qk")));
+    }
+
+    @Test
+    void enPassantIsOnlyHashedWhenACaptureIsPossible() throws IOException {
+        PolyglotBook book = book("empty.bin");
+        assertEquals(book.key(AFTER_E4.replace("e3", "-")), book.key(AFTER_E4));
+        assertEquals(book.key(AFTER_F5.replace("f6", "-")) ^ keys[772 + 5], book.key(AFTER_F5));
+    }
+
+    @Test
+    void lookupSkipsZeroWeightsAndOtherPositions() throws IOException {
+        long start = book("empty.bin").key(START);
+        PolyglotBook book = book("lookup.bin", new long[]{start, move(12, 28), 100}, new long[]{start, move(11, 27), 40},
+                new long[]{start, move(6, 21), 0}, new long[]{book("empty.bin").key(CASTLES), move(4, 7), 1});
+        List<PolyglotBook.Entry> moves = book.lookup(START);
+        assertEquals(2, moves.size());
+        assertEquals("e2e4", moves.get(0).move);
+        assertEquals(100, moves.get(0).weight);
+        assertEquals("d2d4", moves.get(1).move);
+        assertTrue(book.lookup("8/8/8/8/8/8/8/K6k w - - 0 1").isEmpty());
+        assertEquals("e1g1", book.pick(CASTLES, 1500));
+        assertEquals(4, book.getSize());
+        assertEquals(2, book.toJSON().get("hits").asInt());
+    }
+
+    @Test
+    void decodeMove() {
+        assertEquals("e2e4", PolyglotBook.decodeMove(move(12, 28), START));
+        assertEquals("e1g1", PolyglotBook.decodeMove(move(4, 7), CASTLES));
+        assertEquals("e1c1", PolyglotBook.decodeMove(move(4, 0), CASTLES));
+        assertEquals("e8g8", PolyglotBook.decodeMove(move(60, 63), CASTLES));
+        assertEquals("a1e1", PolyglotBook.decodeMove(move(0, 4), "8/8/8/8/8/8/8/R5K1 w - - 0 1")); //not a king
+        assertEquals("a7a8q", PolyglotBook.decodeMove(4 << 12 | move(48, 56), "8/P7/8/8/8/8/8/K6k w - - 0 1"));
+        assertEquals("a7a8n", PolyglotBook.decodeMove(1 << 12 | move(48, 56), "8/P7/8/8/8/8/8/K6k w - - 0 1"));
+    }
+}
@@ -0,0 +1,79 @@
+package org.chernovia.lib.chess;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StockPlugTest {
+
+    static final String MULTI_PV_OUTPUT = String.join("\n",
+            "info string NNUE evaluation enabled",
+            "info depth 1 seldepth 1 multipv 1 score cp 20 nodes 20 pv e2e4",
+            "info depth 1 seldepth 1 multipv 2 score cp 15 nodes 40 pv d2d4",
+            "info depth 1 seldepth 1 multipv 3 score cp 10 nodes 60 pv c2c4",
+            "info depth 2 seldepth 2 multipv 1 score cp 30 nodes 120 pv d2d4 d7d5",
+            "info depth 2 seldepth 2 multipv 2 score cp 25 nodes 180 pv e2e4 e7e5",
+            "info depth 2 seldepth 2 multipv 3 score mate 5 nodes 240 pv g1f3",
+            "info depth 3 currmove b1c3 currmovenumber 4",
+            "bestmove d2d4 ponder d7d5");
+
+    @Test
+    void parseLinesTakesTheLatestCompleteIteration() {
+        List<EngineResult.Line> lines = StockPlug.parseLines(MULTI_PV_OUTPUT);
+        assertEquals(3, lines.size());
+        assertEquals("d2d4", lines.get(0).move);
+        assertEquals(30, lines.get(0).score);
+        assertEquals("e2e4", lines.get(1).move);
+        assertEquals(25, lines.get(1).score);
+        assertEquals("g1f3", lines.get(2).move);
+        assertTrue(lines.get(2).mate);
+        assertEquals(100000 - 5, lines.get(2).centipawns());
+    }
+
+    @Test
+    void parseLinesKeepsEarlierLinesOfAnUnfinishedIteration() {
+        String output = MULTI_PV_OUTPUT.substring(0, MULTI_PV_OUTPUT.indexOf("info depth 2 seldepth 2 multipv 2"));
+        List<EngineResult.Line> lines = StockPlug.parseLines(output);
+        assertEquals(3, lines.size());
+        assertEquals("d2d4", lines.get(0).move); //depth 2
+        assertEquals("d2d4", lines.get(1).move); //depth 1
+        assertEquals("c2c4", lines.get(2).move);
+    }
+
+    @Test
+    void parseLinesSkipsBounds() {
+        String output = String.join("\n",
+                "info depth 7 multipv 1 score cp 40 pv e2e4",
+                "info depth 7 multipv 2 score cp 20 pv d2d4",
+                "info depth 8 multipv 1 score cp 90 lowerbound pv e2e4",
+                "info depth 8 multipv 1 score cp 35 pv g1f3",
+                "info depth 8 multipv 2 score cp -50 upperbound pv c2c4");
+        List<EngineResult.Line> lines = StockPlug.parseLines(output);
+        assertEquals(2, lines.size());
+        assertEquals("g1f3", lines.get(0).move);
+        assertEquals(35, lines.get(0).score);
+        assertEquals("d2d4", lines.get(1).move); //depth 7's: depth 8 only has a bound for it
+        assertEquals(20, lines.get(1).score);
+    }
+
+    @Test
+    void bestMoveAndLastInfo() {
+        assertEquals("d2d4", StockPlug.parseBestMove(MULTI_PV_OUTPUT));
+        assertEquals("d7d5", StockPlug.parseBest(MULTI_PV_OUTPUT).ponder);
+        assertNull(StockPlug.parseBestMove("info depth 1 score cp 0 pv e2e4"));
+        InfoRecord last = StockPlug.parseLastInfo(MULTI_PV_OUTPUT);
+        assertEquals(3, last.depth);
+        assertFalse(last.hasScore);
+        assertEquals(0, StockPlug.parseLastInfo("readyok").depth);
+    }
+
+    @Test
+    void singlePvOutput() {
+        List<EngineResult.Line> lines = StockPlug.parseLines("info depth 10 score cp -80 pv e7e5\nbestmove e7e5");
+        assertEquals(1, lines.size());
+        assertEquals(-80, lines.get(0).score);
+        assertTrue(StockPlug.parseLines("bestmove (none)").isEmpty());
+    }
+}
@@ -0,0 +1,171 @@
+package org.chernovia.molechess;
+
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+import org.chernovia.lib.chess.AnalysisCache;
+import org.chernovia.lib.chess.EnginePool;
+import org.chernovia.lib.chess.EngineResult;
+import org.chernovia.lib.chess.EngineService;
+import org.chernovia.lib.chess.JavaEngine;
+import org.chernovia.lib.chess.PolyglotBook;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MoleGameTest {
+
+    static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    private static int games = 0;
+    @TempDir
+    Path dir;
+    private final PolyglotBook book = MoleServ.BOOK;
+    private final EngineService service = MoleServ.STOCK_SERVICE;
+
+    @AfterEach
+    void tearDown() {
+        if (MoleServ.STOCK_SERVICE != service) MoleServ.STOCK_SERVICE.shutdown();
+        MoleServ.BOOK = book; MoleServ.STOCK_SERVICE = service;
+    }
+
+    static MoleGame game(String fen) {
+        return new MoleGame(new MoleUser(null, "", "Creator", 1600), "Test" + ++games, fen, new NullListener());
+    }
+
+    private static void play(MoleGame game, Square... squares) {
+        for (int i = 0; i < squares.length; i += 2) {
+            assertTrue(game.makeMove(new Move(squares[i], squares[i + 1])).success);
+        }
+    }
+
+    private static void knightsOutAndBack(MoleGame game) {
+        play(game, Square.G1, Square.F3, Square.G8, Square.F6, Square.F3, Square.G1, Square.F6, Square.G8);
+    }
+
+    @Test
+    void threefoldRepetition() {
+        MoleGame game = game(START_FEN);
+        assertEquals(1, game.getRepetitions());
+        knightsOutAndBack(game);
+        assertEquals(2, game.getRepetitions());
+        play(game, Square.G1, Square.F3);
+        assertEquals(2, game.getRepetitions());
+        play(game, Square.G8, Square.F6, Square.F3, Square.G1, Square.F6, Square.G8);
+        assertEquals(3, game.getRepetitions());
+    }
+
+    @Test
+    void countingRestartsAfterAPawnMove() {
+        MoleGame game = game(START_FEN);
+        knightsOutAndBack(game);
+        assertEquals(2, game.getRepetitions());
+        play(game, Square.E2, Square.E4, Square.E7, Square.E5);
+        assertEquals(1, game.getRepetitions());
+        knightsOutAndBack(game);
+        assertEquals(2, game.getRepetitions());
+        knightsOutAndBack(game);
+        assertEquals(3, game.getRepetitions());
+    }
+
+    /**
+     * @return bots added to the game's side to move, which is left in the veto phase (as after a mole's veto)
+     */
+    static List<MolePlayer> afterVeto(MoleGame game, int bots) throws ReflectiveOperationException {
+        List<MolePlayer> players = new ArrayList<>();
+        for (int i = 0; i < bots; i++) {
+            MolePlayer bot = new MolePlayer(new MoleUser(null, null, "Bot" + i, 1600), game, MoleGame.COLOR_WHITE, null);
+            bot.ai = true;
+            game.getTeams().get(MoleGame.COLOR_WHITE).players.add(bot);
+            players.add(bot);
+        }
+        Field phase = MoleGame.class.getDeclaredField("phase");
+        phase.setAccessible(true);
+        phase.set(game, MoleGame.GAME_PHASE.VETO);
+        return players;
+    }
+
+    static void assertVoted(List<MolePlayer> bots, String uci) {
+        for (MolePlayer bot : bots) {
+            assertNotNull(bot.move, bot.user.name + " didn't vote");
+            assertEquals(uci, PositionContext.uci(bot.move));
+        }
+    }
+
+    /**
+     * @return a one position book (with made up Random64 keys) playing e2e4 from the start
+     */
+    private PolyglotBook startBook() throws IOException {
+        SplittableRandom random = new SplittableRandom(781);
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < PolyglotBook.KEYS; i++) keys.append(String.format("0x%016X,%n", random.nextLong()));
+        Path keysFile = Files.writeString(dir.resolve("keys.txt"), keys);
+        Path empty = Files.write(dir.resolve("empty.bin"), new byte[0]);
+        long key = new PolyglotBook(empty.toString(), keysFile.toString()).key(START_FEN);
+        ByteBuffer entry = ByteBuffer.allocate(PolyglotBook.ENTRY_SIZE).putLong(key).putShort((short) (12 << 6 | 28))
+                .putShort((short) 1).putInt(0);
+        Path bin = Files.write(dir.resolve("start.bin"), entry.array());
+        return new PolyglotBook(bin.toString(), keysFile.toString());
+    }
+
+    @Test
+    void drawsByRuleEndNormally() {
+        assertEquals("normal", MoleGame.termination("threefold repetition"));
+        assertEquals("normal", MoleGame.termination("fifty move rule"));
+        assertEquals("normal", MoleGame.termination("checkmate"));
+        assertEquals("abandoned", MoleGame.termination("deserted"));
+    }
+
+    @Test
+    void bookTurnAfterAVeto() throws Exception {
+        MoleServ.BOOK = startBook();
+        MoleGame game = game(START_FEN);
+        List<MolePlayer> bots = afterVeto(game, 3);
+        game.startTurn();
+        assertEquals(MoleGame.GAME_PHASE.VOTING, game.getPhase());
+        assertVoted(bots, "e2e4");
+    }
+
+    @Test
+    void cachedSearchAfterAVeto() throws Exception {
+        MoleServ.BOOK = null;
+        MoleGame game = game(START_FEN);
+        List<MolePlayer> bots = afterVeto(game, 2);
+        Method thinkTime = MoleGame.class.getDeclaredMethod("getThinkTime");
+        thinkTime.setAccessible(true);
+        AnalysisCache cache = new AnalysisCache(1 << 20);
+        cache.put(AnalysisCache.key(START_FEN, MoleServ.STOCK_STRENGTH, (int) thinkTime.invoke(game),
+                bots.size() + MolePlanner.EXTRA_LINES), new EngineResult(START_FEN, "d2d4", .3f, 0,
+                List.of(new EngineResult.Line("d2d4", 30, false), new EngineResult.Line("c2c4", 25, false)), 20, 0));
+        MoleServ.STOCK_SERVICE = new EngineService(new EnginePool(JavaEngine::new, null, 1, 1, 0), 1, 8, cache);
+        game.startTurn(); //the cached result is handed out before startTurn returns
+        assertEquals("d2d4", PositionContext.uci(bots.get(0).move));
+        assertEquals("c2c4", PositionContext.uci(bots.get(1).move));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void ponderHitAfterAVeto() throws Exception {
+        MoleGame game = game(START_FEN);
+        List<MolePlayer> bots = afterVeto(game, 2);
+        Field ponders = MoleGame.class.getDeclaredField("ponders");
+        ponders.setAccessible(true);
+        ((Map<String, CompletableFuture<EngineResult>>) ponders.get(game)).put(AnalysisCache.normalizeFen(START_FEN),
+                CompletableFuture.completedFuture(new EngineResult(START_FEN, "g1f3", .2f, 0,
+                        List.of(new EngineResult.Line("g1f3", 20, false)), 18, 0)));
+        game.startTurn(); //a finished ponder votes before startTurn returns
+        assertVoted(bots, "g1f3");
+    }
+}
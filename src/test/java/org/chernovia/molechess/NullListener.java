@@ -0,0 +1,36 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MoleListener that ignores everything, for games made outside a server
+ */
+class NullListener implements MoleListener {
+
+    @Override
+    public void started(MoleGame game) {}
+
+    @Override
+    public void updateUserData(ArrayList<MolePlayer> winners, ArrayList<MolePlayer> losers, boolean draw) {}
+
+    @Override
+    public void updateUser(MoleUser user, MoleGame game, MoleResult action, boolean movelist) {}
+
+    @Override
+    public void updateGame(MoleGame game, MoleResult action, boolean movelist) {}
+
+    @Override
+    public void created(MoleGame game) {}
+
+    @Override
+    public void ready(MoleGame game) {}
+
+    @Override
+    public void finished(MoleGame game) {}
+
+    @Override
+    public void saveGame(String pgn, List<MolePlayer> whiteTeam, List<MolePlayer> blackTeam, int winner, ObjectNode analysis) {}
+}
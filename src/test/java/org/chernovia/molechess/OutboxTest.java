@@ -0,0 +1,214 @@
+package org.chernovia.molechess;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.chernovia.lib.zugserv.Connection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The writer is held up sending a first "gate" message, so everything offered after it is still queued
+ * until the gate opens, and can then be checked in order.
+ */
+class OutboxTest {
+
+    private final LinkedBlockingQueue<String> sent = new LinkedBlockingQueue<>(); //"type:data"
+    private final CountDownLatch writing = new CountDownLatch(1), gate = new CountDownLatch(1);
+    private volatile Connection.Status status = Connection.Status.STATUS_OK;
+    private volatile boolean closed = false;
+    private Connection conn;
+    private int capacity, window;
+    private Outbox.OVERFLOW policy;
+
+    @BeforeEach
+    void setUp() {
+        capacity = Outbox.CAPACITY; window = Outbox.BATCH_WINDOW; policy = Outbox.POLICY;
+        conn = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "tell" -> {
+                        if (args[0].equals("gate")) {
+                            writing.countDown(); gate.await(5, TimeUnit.SECONDS);
+                        } else sent.add(args[0] + ":" + args[1]);
+                        yield null;
+                    }
+                    case "close" -> { closed = true; yield null; }
+                    case "getStatus" -> status;
+                    case "getHandle", "toString" -> "tester";
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    @AfterEach
+    void tearDown() {
+        gate.countDown();
+        Outbox.remove(conn);
+        Outbox.CAPACITY = capacity; Outbox.BATCH_WINDOW = window; Outbox.POLICY = policy;
+    }
+
+    /**
+     * @return the connection's outbox, with its writer busy until the gate opens
+     */
+    private Outbox held() throws InterruptedException {
+        Outbox outbox = Outbox.open(conn);
+        outbox.offer("gate", node(), null);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        return outbox;
+    }
+
+    private static ObjectNode node(String... fields) {
+        ObjectNode node = MoleServ.OBJ_MAPPER.createObjectNode();
+        for (int i = 0; i < fields.length; i += 2) node.put(fields[i], fields[i + 1]);
+        return node;
+    }
+
+    /**
+     * Opens the gate
+     *
+     * @return the next n messages sent, as "type:data" strings
+     */
+    private List<String> release(int n) throws InterruptedException {
+        gate.countDown();
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String message = sent.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message, "only sent " + messages);
+            messages.add(message);
+        }
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        return messages;
+    }
+
+    /**
+     * @param field sent or frames
+     */
+    private static long count(String field) {
+        for (JsonNode connection : Outbox.toJSON().get("connections")) {
+            if (connection.get("handle").asText().equals("tester")) return connection.get(field).asLong();
+        }
+        return -1;
+    }
+
+    @Test
+    void newerUpdateReplacesTheQueuedOneInPlace() throws InterruptedException {
+        Outbox outbox = held();
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, node("fen", "a", "lm", "e2e4"), "game1");
+        outbox.offer("chat", node("msg", "hi"), "game1");
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, node("fen", "b", "lm", "e7e5"), "game2"); //another game: kept
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, node("fen", "c", "lm", "d2d4", "timeRemaining", "9"), "game1");
+        assertEquals(List.of(
+                MoleServ.MSG_GAME_UPDATE + ":{\"fen\":\"c\",\"lm\":\"d2d4\",\"timeRemaining\":\"9\"}",
+                "chat:{\"msg\":\"hi\"}",
+                MoleServ.MSG_GAME_UPDATE + ":{\"fen\":\"b\",\"lm\":\"e7e5\"}"), release(3));
+        assertEquals(1, Outbox.toJSON().get("coalesced").asInt());
+    }
+
+    @Test
+    void partialUpdateNeverReplacesAFullOne() throws InterruptedException {
+        Outbox outbox = held();
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, node("fen", "a", "lm", "e2e4", "history", "x"), "game1");
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, node("fen", "b", "lm", "e7e5"), "game1");
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, node("fen", "c", "lm", "g1f3"), "game1"); //replaces the partial one
+        assertEquals(List.of(
+                MoleServ.MSG_GAME_UPDATE + ":{\"fen\":\"a\",\"lm\":\"e2e4\",\"history\":\"x\"}",
+                MoleServ.MSG_GAME_UPDATE + ":{\"fen\":\"c\",\"lm\":\"g1f3\"}"), release(2));
+    }
+
+    @Test
+    void encodedUpdatesAreComparedByTheirTrees() throws InterruptedException {
+        Outbox outbox = held();
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, MoleServ.encode(node("fen", "a", "history", "x")), "game1");
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, MoleServ.encode(node("fen", "b")), "game1");
+        outbox.offer(MoleServ.MSG_GAME_UPDATE, MoleServ.encode(node("fen", "c", "history", "y")), "game1");
+        assertEquals(2, release(2).size()); //the full one took the first one's place, the partial one's kept
+    }
+
+    @Test
+    void messagesWithoutASourceAreNeverCoalesced() throws InterruptedException {
+        Outbox outbox = held();
+        outbox.offer("phase", node("phase", "VOTING"), null);
+        outbox.offer("phase", node("phase", "POSTPOSTVOTING"), null);
+        assertEquals(2, release(2).size());
+    }
+
+    @Test
+    void fullQueueDropsItsOldestChatter() throws InterruptedException {
+        Outbox.CAPACITY = 3; Outbox.POLICY = Outbox.OVERFLOW.DROP;
+        Outbox outbox = held();
+        outbox.offer("phase", node("phase", "VOTING"), "game1");
+        outbox.offer("chat", node("msg", "1"), "game1");
+        outbox.offer("chat", node("msg", "2"), "game1");
+        outbox.offer("chat", node("msg", "3"), "game1");
+        outbox.offer("game_msg", node("msg", "4"), "game1");
+        assertEquals(List.of("phase:{\"phase\":\"VOTING\"}", "chat:{\"msg\":\"3\"}", "game_msg:{\"msg\":\"4\"}"), release(3));
+        assertFalse(closed);
+    }
+
+    @Test
+    void fullQueueWithNothingDroppableDisconnects() throws InterruptedException {
+        Outbox.CAPACITY = 2; Outbox.POLICY = Outbox.OVERFLOW.DROP;
+        Outbox outbox = held();
+        outbox.offer("phase", node("phase", "VOTING"), "game1");
+        outbox.offer("votelist", node("votes", "0"), "game1");
+        outbox.offer("options", node("time", "30"), "game1");
+        assertTrue(closed);
+        assertEquals(List.of(), release(0));
+        assertNotSame(outbox, Outbox.of(conn));
+    }
+
+    @Test
+    void disconnectPolicyGivesUpAtOnce() throws InterruptedException {
+        Outbox.CAPACITY = 1; Outbox.POLICY = Outbox.OVERFLOW.DISCONNECT;
+        Outbox outbox = held();
+        outbox.offer("chat", node("msg", "1"), null);
+        outbox.offer("chat", node("msg", "2"), null);
+        assertTrue(closed);
+    }
+
+    @Test
+    void closedConnectionsTakeNothing() throws InterruptedException {
+        Outbox.of(conn).offer("chat", node("msg", "never opened"), null);
+        Outbox.open(conn);
+        Outbox.remove(conn);
+        Outbox.of(conn).offer("chat", node("msg", "removed"), null);
+        assertEquals(List.of(), release(0));
+        assertEquals(-1, count("sent"));
+    }
+
+    @Test
+    void onlyWrittenMessagesAreCounted() throws InterruptedException {
+        Outbox outbox = held();
+        outbox.offer("chat", node("msg", "1"), null);
+        assertEquals(List.of("chat:{\"msg\":\"1\"}"), release(1));
+        assertEquals(2, count("sent")); //and the gate
+        status = Connection.Status.STATUS_DISCONNECTED;
+        outbox.offer("chat", node("msg", "2"), null);
+        assertEquals(List.of(), release(0));
+        assertEquals(2, count("sent"));
+        assertEquals(2, count("frames"));
+    }
+
+    @Test
+    void batchingSendsWhatsQueuedWithinTheWindowAsOneFrame() throws InterruptedException {
+        Outbox.BATCH_WINDOW = 200;
+        Outbox outbox = Outbox.open(conn);
+        outbox.setBatching(true);
+        outbox.offer("chat", node("msg", "1"), null);
+        outbox.offer("phase", node("phase", "VOTING"), "game1");
+        assertEquals(List.of(Outbox.MSG_BATCH + ":[{\"type\":\"chat\",\"data\":{\"msg\":\"1\"}}," +
+                "{\"type\":\"phase\",\"data\":{\"phase\":\"VOTING\"}}]"), release(1));
+        assertEquals(2, count("sent"));
+        assertEquals(1, count("frames"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.chernovia.molechess;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PositionContextTest {
+
+    static final String EN_PASSANT_FEN = "rnbqkbnr/pppp2pp/4p3/4Pp2/8/8/PPPP1PPP/RNBQKBNR w KQkq f6 0 3";
+    static final String CAPTURE_FEN = "rnbqkbnr/pppp2pp/4pp2/4P3/8/8/PPPP1PPP/RNBQKBNR w KQkq - 0 3";
+
+    private static PositionContext position(String fen) {
+        Board board = new Board(); board.loadFromFen(fen);
+        return new PositionContext(board);
+    }
+
+    private static String san(String fen, String uci) {
+        PositionContext position = position(fen);
+        Move move = position.getMove(uci);
+        assertNotNull(move, uci + " should be legal in " + fen);
+        assertEquals(position.getSan(move), move.getSan());
+        return move.getSan();
+    }
+
+    @Test
+    void pawnMovesAndCaptures() {
+        assertEquals("exf6", san(EN_PASSANT_FEN, "e5f6"));
+        assertEquals("exf6", san(CAPTURE_FEN, "e5f6"));
+        assertEquals("d4", san(EN_PASSANT_FEN, "d2d4"));
+        assertEquals("Nf3", san(EN_PASSANT_FEN, "g1f3"));
+    }
+
+    @Test
+    void illegalMovesHaveNoSan() {
+        PositionContext position = position(EN_PASSANT_FEN);
+        assertNull(position.getMove("e5e6")); //blocked
+        assertNull(position.getMove("e5d6")); //no en passant on d6
+        assertNull(position.getSan(new Move(Square.E5, Square.D6)));
+        assertFalse(position.isLegal(new Move(Square.E5, Square.E6)));
+    }
+
+    @Test
+    void castling() {
+        String fen = "r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1";
+        assertEquals("O-O", san(fen, "e1g1"));
+        assertEquals("O-O-O", san(fen, "e1c1"));
+        assertEquals("O-O", san("r3k2r/8/8/8/8/8/8/R3K2R b KQkq - 0 1", "e8g8"));
+    }
+
+    @Test
+    void disambiguation() {
+        assertEquals("Nbd2", san("4k3/8/8/8/8/8/8/1N2KN2 w - - 0 1", "b1d2"));
+        assertEquals("R1a3", san("4k3/8/8/R7/8/8/8/R3K3 w - - 0 1", "a1a3"));
+        assertEquals("Qh4e1", san("2k5/8/8/8/4Q2Q/8/8/K6Q w - - 0 1", "h4e1"));
+    }
+
+    @Test
+    void checkMateAndPromotion() {
+        assertEquals("Qh4#", san("rnbqkbnr/pppp1ppp/8/4p3/6P1/5P2/PPPPP2P/RNBQKBNR b KQkq - 0 2", "d8h4"));
+        assertEquals("Bb5+", san("rnbqkbnr/ppp1pppp/8/3p4/4P3/8/PPPP1PPP/RNBQKBNR w KQkq - 0 2", "f1b5"));
+        assertEquals("a8=Q+", san("7k/P7/8/8/8/8/8/K7 w - - 0 1", "a7a8q"));
+        assertEquals("a8=N", san("8/P5k1/8/8/8/8/8/K7 w - - 0 1", "a7a8n"));
+    }
+
+    @Test
+    void movesAreCopies() {
+        PositionContext position = position(EN_PASSANT_FEN);
+        Move move = position.getMove("d2d4");
+        assertNotSame(move, position.getMove("D2D4")); //votes compare moves by identity
+        assertTrue(position.isLegal(move));
+    }
+}
@@ -0,0 +1,110 @@
+package org.chernovia.molechess;
+
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VoteLedgerTest {
+
+    private VoteLedger ledger;
+    private MolePlayer alice, bob, carol;
+
+    @BeforeEach
+    void setUp() {
+        ledger = new VoteLedger();
+        alice = player("alice"); bob = player("bob"); carol = player("carol");
+        ledger.reset(List.of(alice, bob, carol));
+    }
+
+    private static MolePlayer player(String name) {
+        return new MolePlayer(new MoleUser(null, null, name, 1600), null, MoleGame.COLOR_WHITE, null);
+    }
+
+    private static Move move(Square from, Square to) {
+        return new Move(from, to);
+    }
+
+    @Test
+    void countsVotesUntilEveryoneHasVoted() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        ledger.vote(bob, move(Square.E2, Square.E4));
+        assertEquals(2, ledger.getVotes());
+        assertFalse(ledger.isComplete());
+        ledger.vote(carol, move(Square.D2, Square.D4));
+        assertEquals(3, ledger.getVotes());
+        assertTrue(ledger.isComplete());
+    }
+
+    @Test
+    void changedVoteReplacesTheOldOne() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        ledger.vote(alice, move(Square.D2, Square.D4));
+        assertEquals(1, ledger.getVotes());
+        assertEquals(VoteLedger.key(move(Square.D2, Square.D4)), ledger.pick(VoteLedger.POLICY.WEIGHTED));
+    }
+
+    @Test
+    void withdrawnVoteIsUncounted() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        ledger.vote(alice, null);
+        assertNull(alice.move);
+        assertEquals(0, ledger.getVotes());
+        assertEquals(-1, ledger.pick(VoteLedger.POLICY.PLURALITY));
+    }
+
+    @Test
+    void removeOnlyTakesVotesThatWereCounted() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        ledger.remove(move(Square.D2, Square.D4));
+        assertEquals(1, ledger.getVotes());
+        ledger.remove(move(Square.E2, Square.E4));
+        assertEquals(0, ledger.getVotes());
+    }
+
+    @Test
+    void pluralityPicksTheMostVotedMove() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        ledger.vote(bob, move(Square.E2, Square.E4));
+        ledger.vote(carol, move(Square.D2, Square.D4));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(VoteLedger.key(move(Square.E2, Square.E4)), ledger.pick(VoteLedger.POLICY.PLURALITY));
+        }
+    }
+
+    @Test
+    void everyPolicyPicksAVotedMove() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        ledger.vote(bob, move(Square.G1, Square.F3));
+        List<Integer> voted = List.of(VoteLedger.key(move(Square.E2, Square.E4)), VoteLedger.key(move(Square.G1, Square.F3)));
+        for (VoteLedger.POLICY policy : VoteLedger.POLICY.values()) {
+            for (int i = 0; i < 20; i++) assertTrue(voted.contains(ledger.pick(policy)), policy.name());
+        }
+    }
+
+    @Test
+    void resetCountsStandingVotesAndActivePlayers() {
+        ledger.vote(alice, move(Square.E2, Square.E4));
+        carol.away = true;
+        ledger.reset(List.of(alice, bob, carol));
+        assertEquals(1, ledger.getVotes());
+        assertFalse(ledger.isComplete());
+        ledger.vote(bob, move(Square.E2, Square.E4));
+        assertTrue(ledger.isComplete()); //carol isn't expected to vote
+        ledger.reset(List.of());
+        assertEquals(0, ledger.getVotes());
+        assertEquals(-1, ledger.pick(VoteLedger.POLICY.WEIGHTED));
+    }
+
+    @Test
+    void keyDistinguishesPromotions() {
+        assertNotEquals(VoteLedger.key(new Move(Square.A7, Square.A8, Piece.WHITE_QUEEN)),
+                VoteLedger.key(new Move(Square.A7, Square.A8, Piece.WHITE_KNIGHT)));
+        assertNotEquals(VoteLedger.key(move(Square.E2, Square.E4)), VoteLedger.key(move(Square.E4, Square.E2)));
+    }
+}
@@ -0,0 +1,113 @@
+package org.chernovia.molechess.bench;
+
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.chernovia.lib.zugserv.Connection;
+import org.chernovia.molechess.Outbox;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test for Outbox batching: a number of games each send a turn's burst of messages to their
+ * recipients every tick, to plain or to batching connections.
+ * One invocation is the whole load, so the score is just its duration (mostly ticks); what matters
+ * are the counters: messages offered and frames written (one frame is one write to a socket).
+ * Run: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=BatchBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BatchBench {
+
+    static final String[] BURST = {"game_msg", "votelist", "phase", "move", "game_msg", "game_msg", "defection"}; //one turn
+
+    @Param({"false", "true"})
+    boolean batching;
+    @Param({"20"})
+    int games;
+    @Param({"10"})
+    int recipients;
+    @Param({"20"})
+    int turns;
+    @Param({"50"})
+    int tick;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Frames {
+        final LongAdder written = new LongAdder();
+        public long messages, frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            written.reset(); messages = frames = 0;
+        }
+    }
+
+    @Benchmark
+    public void load(Frames counters) throws InterruptedException {
+        ExecutorService gameThreads = Executors.newFixedThreadPool(games);
+        for (int g = 0; g < games; g++) {
+            String title = "Game" + g;
+            List<Outbox> outboxes = new ArrayList<>();
+            for (int r = 0; r < recipients; r++) {
+                Outbox outbox = Outbox.open(connection(counters.written));
+                outbox.setBatching(batching);
+                outboxes.add(outbox);
+            }
+            gameThreads.execute(() -> {
+                for (int turn = 0; turn < turns; turn++) {
+                    for (String type : BURST) {
+                        TextNode node = new TextNode(type + turn);
+                        for (Outbox outbox : outboxes) outbox.offer(type, node, title);
+                    }
+                    try { Thread.sleep(tick); } catch (InterruptedException e) { return; }
+                }
+            });
+        }
+        gameThreads.shutdown();
+        gameThreads.awaitTermination(1, TimeUnit.HOURS);
+        long last;
+        do { //until the writers are done
+            last = counters.written.sum(); Thread.sleep(100);
+        } while (counters.written.sum() != last);
+        counters.messages += (long) games * recipients * turns * BURST.length;
+        counters.frames += counters.written.sumThenReset();
+    }
+
+    /**
+     * @return a connection that counts what it's told to send
+     */
+    private static Connection connection(LongAdder frames) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "tell" -> { frames.increment(); yield null; }
+                    case "getStatus" -> Connection.Status.STATUS_OK;
+                    case "getHandle", "toString" -> "bench";
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> method.getReturnType() == boolean.class ? false : null;
+                });
+    }
+}
@@ -0,0 +1,129 @@
+package org.chernovia.molechess.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.chernovia.molechess.MoleServ;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares broadcasting a game update by serializing it per connection (as every Connection.tell did)
+ * with encoding it once via MoleServ.encode, for fan-outs from 1 to 1000: time per broadcast.
+ * Each "connection" wraps the payload in an envelope and writes it to a String, like a websocket text frame.
+ * Add -prof gc for the bytes allocated per broadcast.
+ * Run: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=BroadcastBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBench {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"1", "10", "100", "1000"})
+    int fanout;
+    @Param({"12"})
+    int players;
+    @Param({"40"})
+    int plies;
+    ObjectNode payload;
+
+    @Setup
+    public void setUp() {
+        payload = gameUpdate(players, plies);
+    }
+
+    @Benchmark
+    public void perConnection(Blackhole hole) throws JsonProcessingException {
+        for (int c = 0; c < fanout; c++) hole.consume(send("update_game", payload));
+    }
+
+    @Benchmark
+    public void encodedOnce(Blackhole hole) throws JsonProcessingException {
+        JsonNode frame = MoleServ.encode(payload);
+        for (int c = 0; c < fanout; c++) hole.consume(send("update_game", frame));
+    }
+
+    private static String send(String type, JsonNode data) throws JsonProcessingException {
+        ObjectNode envelope = MAPPER.createObjectNode();
+        envelope.put("type", type);
+        envelope.set("data", data);
+        return MAPPER.writeValueAsString(envelope);
+    }
+
+    /**
+     * @return something shaped like MoleGame.toJSON(true)
+     */
+    static ObjectNode gameUpdate(int players, int plies) {
+        ObjectNode game = MAPPER.createObjectNode();
+        ArrayNode teams = game.putArray("teams");
+        for (int t = 0; t < 2; t++) {
+            ObjectNode team = teams.addObject();
+            ArrayNode playerArray = team.putArray("players");
+            for (int p = 0; p < players / 2; p++) playerArray.add(player("Player" + t + p, t));
+            team.put("vote_count", 0);
+            team.put("color", t);
+        }
+        game.put("title", "BenchGame");
+        game.put("creator", "Player00");
+        game.put("currentFEN", "r1bqk2r/pppp1ppp/2n2n2/2b1p3/2B1P3/3P1N2/PPP2PPP/RNBQK2R w KQkq - 1 5");
+        ArrayNode history = game.putArray("history");
+        for (int i = 0; i < plies; i++) {
+            ObjectNode ply = history.addObject();
+            ArrayNode alts = ply.putArray("alts");
+            for (int p = 1; p < players / 2; p++) alts.add(vote("Player" + (i % 2) + p, i % 2));
+            ply.set("selected", vote("Player" + (i % 2) + "0", i % 2));
+            ply.put("fen", "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1");
+            ply.put("turn", i % 2);
+        }
+        game.put("timeRemaining", 42);
+        game.put("turn", 1);
+        game.put("phase", "VOTING");
+        game.put("source", "BenchGame");
+        return game;
+    }
+
+    private static ObjectNode player(String name, int color) {
+        ObjectNode player = MAPPER.createObjectNode();
+        player.put("score", 0);
+        player.put("game_col", color);
+        player.put("play_col", "#FFAA00");
+        player.put("away", false);
+        player.put("kicked", false);
+        player.put("kickable", false);
+        player.put("votename", "undecided");
+        ObjectNode user = player.putObject("user");
+        user.put("name", name);
+        user.put("blitz", 1500);
+        user.putObject("data").put("rating", 1600);
+        return player;
+    }
+
+    private static ObjectNode vote(String name, int color) {
+        ObjectNode vote = MAPPER.createObjectNode();
+        vote.set("player", player(name, color));
+        ObjectNode move = vote.putObject("move");
+        move.put("from", "e2");
+        move.put("to", "e4");
+        move.put("san", "e4");
+        return vote;
+    }
+}
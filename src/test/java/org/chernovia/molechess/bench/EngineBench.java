@@ -0,0 +1,105 @@
+package org.chernovia.molechess.bench;
+
+import org.chernovia.lib.chess.ChessEngine;
+import org.chernovia.lib.chess.JavaEngine;
+import org.chernovia.lib.chess.StockPlug;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency per move of the in-process JavaEngine vs a Stockfish process, at a low Elo, cycling through
+ * a few positions. The cpu counters add up the CPU each search cost: the benchmark thread's own
+ * (all of JavaEngine's) and the engine process's.
+ * Run: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main
+ * -Dexec.args="EngineBench -p path=stockfish/stockfish"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class EngineBench {
+
+    static final String[] POSITIONS = {
+            "startpos",
+            "startpos moves e2e4 e7e5 g1f3 b8c6 f1b5 a7a6",
+            "fen r1bqk2r/pppp1ppp/2n2n2/2b1p3/2B1P3/3P1N2/PPP2PPP/RNBQK2R w KQkq - 1 5",
+            "fen 8/5pk1/6p1/7p/3R3P/6P1/r4PK1/8 b - - 0 41",
+            "fen r2q1rk1/1b2bppp/p2p1n2/npp1p3/3PP3/2P2N1P/PPBN1PP1/R1BQR1K1 w - - 0 12"
+    };
+
+    @Param({"java", "stockfish"})
+    String engineType;
+    @Param({"stockfish/stockfish"})
+    String path;
+    @Param({"1500"})
+    int elo;
+    @Param({"1000"})
+    int moveTime;
+    ChessEngine engine;
+    int next = 0;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+        public long searches, bestMoves, jvmCpuMicros, processCpuMicros;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            searches = bestMoves = jvmCpuMicros = processCpuMicros = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        engine = engineType.equals("java") ? new JavaEngine() : new StockPlug();
+        if (!engine.startEngine(path) || !engine.probe(StockPlug.READY_TIMEOUT)) {
+            throw new IllegalStateException(engineType + ": failed to start");
+        }
+        engine.setOptions(1, 16);
+        engine.setElo(elo);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.stopEngine();
+    }
+
+    @Benchmark
+    public String search(Cpu cpu) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu0 = threads.getCurrentThreadCpuTime(), child0 = childCpu();
+        String output = engine.searchPosition(POSITIONS[next++ % POSITIONS.length], moveTime, 1).join();
+        cpu.jvmCpuMicros += (threads.getCurrentThreadCpuTime() - cpu0) / 1000;
+        cpu.processCpuMicros += (childCpu() - child0) / 1000;
+        cpu.searches++;
+        if (StockPlug.parseBestMove(output) != null) cpu.bestMoves++;
+        return output;
+    }
+
+    /**
+     * @return total CPU time (ns) used so far by this JVM's child processes
+     */
+    private static long childCpu() {
+        return ProcessHandle.current().children()
+                .mapToLong(p -> p.info().totalCpuDuration().orElse(Duration.ZERO).toNanos()).sum();
+    }
+}
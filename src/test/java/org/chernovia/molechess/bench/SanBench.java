@@ -0,0 +1,116 @@
+package org.chernovia.molechess.bench;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.PieceType;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+import org.chernovia.molechess.PositionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares a ply's worth of SAN lookups through PositionContext (built once per ply) with the
+ * per-vote getSan path MoleGame used before it: time per ply, for the given number of votes
+ * Run: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=SanBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanBench {
+
+    @Param({
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r1bqk2r/pppp1ppp/2n2n2/2b1p3/2B1P3/3P1N2/PPP2PPP/RNBQK2R w KQkq - 1 5",
+            "r2q1rk1/1b2bppp/p2p1n2/npp1p3/3PP3/2P2N1P/PPBN1PP1/R1BQR1K1 w - - 0 12",
+            "6k1/8/2N1N3/8/2N1N3/8/8/R3K2R w KQ - 0 1" //knights and rooks needing disambiguation
+    })
+    String fen;
+    @Param({"8"})
+    int votes;
+    Board board;
+    List<Move> moves;
+
+    @Setup
+    public void setUp() {
+        board = new Board(); board.loadFromFen(fen);
+        moves = board.legalMoves();
+        PositionContext context = new PositionContext(board);
+        for (Move move : moves) {
+            String legacy = legacySan(move, board), current = context.getSan(move);
+            if (!legacy.equals(current)) System.out.println("Mismatch: " + fen + " " + move + " " + legacy + " " + current);
+        }
+    }
+
+    @Benchmark
+    public void legacy(Blackhole hole) {
+        for (int v = 0; v < votes; v++) hole.consume(legacySan(moves.get(v % moves.size()), board));
+    }
+
+    @Benchmark
+    public void context(Blackhole hole) {
+        PositionContext context = new PositionContext(board);
+        for (int v = 0; v < votes; v++) hole.consume(context.getSan(moves.get(v % moves.size())));
+    }
+
+    //MoleGame.getSan before PositionContext
+
+    static String legacySan(final Move move, final Board sanBoard) {
+        if (sanBoard.legalMoves().contains(move)) {
+            final Board auxBoard = sanBoard.clone();
+            auxBoard.doMove(move);
+            Square from = move.getFrom(); Square to = move.getTo();
+            Piece piece = sanBoard.getPiece(from);
+            final String ending = auxBoard.isMated() ? "#" : auxBoard.isKingAttacked() ? "+" : "";
+            if (piece.equals(Piece.BLACK_KING) && from.equals(Square.E8)) {
+                if (to.equals(Square.G8)) return "O-O" + ending;
+                else if (to.equals(Square.C8)) return "O-O-O" + ending;
+            } else if (piece.equals(Piece.WHITE_KING) && from.equals(Square.E1)) {
+                if (to.equals(Square.G1)) return "O-O" + ending;
+                else if (to.equals(Square.C1)) return "O-O-O" + ending;
+            }
+            Piece target = sanBoard.getPiece(move.getTo());
+            final String takes = (target != Piece.NONE ||
+                    (piece.getPieceType() == PieceType.PAWN && !from.getFile().equals(to.getFile()))) ? "x" : "";
+            final String promotion = move.getPromotion() != Piece.NONE ? "=" + move.getPromotion().getSanSymbol() : "";
+            final String fromStr = legacyFromString(sanBoard, piece, from, to).toLowerCase();
+            final String toStr = to.value().toLowerCase();
+            final String sanSymbol = (piece.getSanSymbol().equals("") && takes.equals("x") && fromStr.equals("")) ?
+                    from.value().substring(0, 1).toLowerCase() : piece.getSanSymbol();
+            return sanSymbol + fromStr + takes + toStr + promotion + ending;
+        }
+        return null;
+    }
+
+    static String legacyFromString(final Board board, final Piece piece, final Square from, final Square to) {
+        if (piece.getPieceType() == PieceType.PAWN || piece.getPieceType() == PieceType.NONE) return "";
+        final List<Move> conflictingMoves = board.getPieceLocation(piece)
+                .stream()
+                .map(square -> new Move(square.value() + to.value(), board.getSideToMove()))
+                .filter(move -> board.legalMoves().contains(move) && move.getFrom() != from)
+                .collect(Collectors.toList());
+        if (conflictingMoves.size() < 1) return "";
+        final boolean conflictOnFile = conflictingMoves.stream().map(move -> move.getFrom().getFile()).anyMatch(file -> file == from.getFile());
+        final boolean conflictOnRank = conflictingMoves.stream().map(move -> move.getFrom().getRank()).anyMatch(rank -> rank == from.getRank());
+        if (conflictOnFile && conflictOnRank) return from.value();
+        else if (conflictOnFile) return from.value().substring(1, 2);
+        else return from.value().substring(0, 1);
+    }
+}
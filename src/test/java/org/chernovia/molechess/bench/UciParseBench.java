@@ -0,0 +1,151 @@
+package org.chernovia.molechess.bench;
+
+import org.chernovia.lib.chess.EngineResult;
+import org.chernovia.lib.chess.InfoRecord;
+import org.chernovia.lib.chess.StockPlug;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the InfoRecord based parsers in StockPlug with the split based ones they replaced,
+ * on a synthetic MultiPV search output: everything read from one search's output, per search
+ * Run: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=UciParseBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UciParseBench {
+
+    @Param({"24"})
+    int depth;
+    @Param({"1", "4"})
+    int multiPv;
+    String output;
+
+    @Setup
+    public void setUp() {
+        output = searchOutput(depth, multiPv);
+        String legacy = legacyBestMove(output) + " " + legacyLines(output) + " " + legacyLastValue(output, "depth");
+        String current = StockPlug.parseBestMove(output) + " " + StockPlug.parseLines(output) + " " +
+                StockPlug.parseLastInfo(output).depth;
+        if (!legacy.equals(current)) throw new IllegalStateException("Parsers disagree: " + legacy + " vs " + current);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole hole) {
+        hole.consume(legacyBestMove(output));
+        hole.consume(legacyEval(output));
+        hole.consume(legacyLines(output));
+        hole.consume(legacyLastValue(output, "depth"));
+        hole.consume(legacyLastValue(output, "nodes"));
+    }
+
+    @Benchmark
+    public void infoRecord(Blackhole hole) {
+        InfoRecord last = StockPlug.parseLastInfo(output);
+        hole.consume(StockPlug.parseBestMove(output));
+        hole.consume(StockPlug.parseEval(output));
+        hole.consume(StockPlug.parseLines(output));
+        hole.consume(last.depth);
+        hole.consume(last.nodes);
+    }
+
+    static String searchOutput(int depth, int multiPv) {
+        StringBuilder sb = new StringBuilder();
+        String[] moves = {"e2e4", "d2d4", "g1f3", "c2c4", "b1c3", "g2g3"};
+        for (int d = 1; d <= depth; d++) {
+            for (int k = 1; k <= multiPv; k++) {
+                sb.append("info depth ").append(d).append(" seldepth ").append(d + 4).append(" multipv ").append(k)
+                        .append(" score cp ").append(40 - k * 12).append(k == 2 && d % 5 == 0 ? " upperbound" : "")
+                        .append(" nodes ").append(d * 31337L).append(" nps 812000 hashfull ").append(d * 3)
+                        .append(" tbhits 0 time ").append(d * 40).append(" pv ").append(moves[k - 1])
+                        .append(" e7e5 g1f3 b8c6 f1b5 a7a6 b5a4 g8f6 e1g1 f8e7\n");
+            }
+        }
+        return sb.append("bestmove e2e4 ponder e7e5\n").toString();
+    }
+
+    //the parsers StockPlug used before InfoRecord
+
+    static String legacyBestMove(String output) {
+        if (!output.contains("bestmove ")) return null;
+        return output.split("bestmove ")[1].split("\\s")[0];
+    }
+
+    static List<EngineResult.Line> legacyLines(String output) {
+        TreeMap<Integer, EngineResult.Line> lines = new TreeMap<>();
+        for (String line : output.split("\n")) {
+            if (!line.startsWith("info ") || !line.contains(" pv ")) continue;
+            String[] tokens = line.split(" ");
+            int index = 1, score = 0; boolean mate = false; String move = null;
+            try {
+                for (int i = 1; i < tokens.length - 1; i++) {
+                    switch (tokens[i]) {
+                        case "multipv" -> index = Integer.parseInt(tokens[++i]);
+                        case "cp" -> score = Integer.parseInt(tokens[++i]);
+                        case "mate" -> { score = Integer.parseInt(tokens[++i]); mate = true; }
+                        case "pv" -> { move = tokens[i + 1]; i = tokens.length; }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (move != null) lines.put(index, new EngineResult.Line(move, score, mate));
+        }
+        return new ArrayList<>(lines.values());
+    }
+
+    static long legacyLastValue(String output, String token) {
+        String[] dump = output.split("\n");
+        for (int i = dump.length - 1; i >= 0; i--) {
+            if (!dump[i].startsWith("info ")) continue;
+            String[] tokens = dump[i].split(" ");
+            for (int t = 1; t < tokens.length - 1; t++) {
+                if (tokens[t].equals(token)) try {
+                    return Long.parseLong(tokens[t + 1]);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return 0;
+    }
+
+    static float legacyEval(String output) {
+        String[] dump = output.split("\n");
+        for (int i = dump.length - 1; i >= 0; i--) {
+            if (dump[i].startsWith("info depth ")) {
+                if (dump[i].contains("mate")) return 999;
+                if (dump[i].contains("score cp")) {
+                    try {
+                        return Float.parseFloat(dump[i].split("score cp ")[1].split(" nodes")[0]) / 100;
+                    } catch (Exception e) {
+                        try {
+                            return Float.parseFloat(dump[i].split("score cp ")[1].split(" upperbound nodes")[0]) / 100;
+                        } catch (Exception oops) {
+                            return 0;
+                        }
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,105 @@
+package org.chernovia.molechess.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Encoding time for a game snapshot (see BroadcastBench.gameUpdate) in each of the wire formats:
+ * JSON text, Smile with and without shared string values, and Smile as actually framed for a Smile
+ * client (base64 inside a JSON text frame).
+ * The sizes, raw and deflated, are printed at setup; the deflated ones approximate what
+ * permessage-deflate would send, without a shared window.
+ * Run: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=WireBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireBench {
+
+    static final ObjectMapper JSON = new ObjectMapper();
+    static final ObjectMapper SMILE = new ObjectMapper(SmileFactory.builder()
+            .disable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES).build());
+    static final ObjectMapper SMILE_SHARED = new ObjectMapper(SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES).build()); //as WireFormat.SMILE
+
+    @Param({"12"})
+    int players;
+    @Param({"0", "40", "120"})
+    int plies;
+    ObjectNode payload;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        payload = BroadcastBench.gameUpdate(players, plies);
+        System.out.printf("%n%d players, %d plies:%n", players, plies);
+        size("json", json());
+        size("smile", smile());
+        size("smile (shared values)", smileShared());
+        size("smile frame (base64)", smileFrame());
+    }
+
+    private static void size(String name, byte[] bytes) {
+        System.out.printf("  %-22s %8d bytes, %8d deflated%n", name, bytes.length, deflated(bytes));
+    }
+
+    @Benchmark
+    public byte[] json() throws JsonProcessingException {
+        return JSON.writeValueAsBytes(payload);
+    }
+
+    @Benchmark
+    public byte[] smile() throws JsonProcessingException {
+        return SMILE.writeValueAsBytes(payload);
+    }
+
+    @Benchmark
+    public byte[] smileShared() throws JsonProcessingException {
+        return SMILE_SHARED.writeValueAsBytes(payload);
+    }
+
+    @Benchmark
+    public byte[] smileFrame() throws JsonProcessingException {
+        return frame(SMILE_SHARED.writeValueAsBytes(payload));
+    }
+
+    /**
+     * @return the data as sent to a Smile client: {"type", "data": base64}
+     */
+    private static byte[] frame(byte[] smile) throws JsonProcessingException {
+        ObjectNode envelope = JSON.createObjectNode();
+        envelope.put("type", "update_game");
+        envelope.set("data", BinaryNode.valueOf(smile));
+        return JSON.writeValueAsString(envelope).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int deflated(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(bytes); deflater.finish();
+        byte[] buf = new byte[bytes.length + 64];
+        int n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        return n;
+    }
+}